@@ -104,7 +104,7 @@ def execute_sql_command(sql_command: str) -> str:
 
     Returns:
         str: A response string formatted for the Java client:
-             - "SUCCESS": For INSERT/UPDATE/DELETE commands.
+             - "SUCCESS": For INSERT/UPDATE/DELETE commands (one or a batch of them).
              - "SUCCESS|row1_data|row2_data": For SELECT queries.
              - "ERROR: ...": If an exception occurs.
     """
@@ -115,10 +115,9 @@ def execute_sql_command(sql_command: str) -> str:
         # Log the command being executed
         print(f"[{SERVER_NAME}] Executing SQL: {sql_command}")
         
-        c.execute(sql_command)
-        
         # Handle SELECT queries (returning data)
         if sql_command.strip().upper().startswith("SELECT"):
+            c.execute(sql_command)
             rows = c.fetchall()
             if not rows:
                 return "SUCCESS"
@@ -128,7 +127,10 @@ def execute_sql_command(sql_command: str) -> str:
             data_str = "|".join([", ".join(map(str, row)) for row in rows])
             return "SUCCESS|" + data_str
         else:
-            # Handle modification queries (INSERT, UPDATE, DELETE)
+            # Handle modification queries (INSERT, UPDATE, DELETE).
+            # The Java server batches them into one "BEGIN; ...; COMMIT;" script,
+            # so several statements may arrive in a single request.
+            c.executescript(sql_command)
             conn.commit()
             return "SUCCESS"
             
@@ -1,5 +1,8 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +14,24 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * decodes all the bytes remaining in the given buffer, handing every message they
+     * complete to the consumer. bytes of a message that is not complete yet are kept
+     * for the next call. the default implementation feeds {@link #decodeNextByte(byte)}
+     * one byte at a time; implementations may override it with a bulk scan.
+     *
+     * @param buffer the bytes to decode, from its position to its limit
+     * @param consumer receives every completed message, in order
+     */
+    default void decode(ByteBuffer buffer, Consumer<T> consumer) {
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                consumer.accept(nextMessage);
+            }
+        }
+    }
+
     /**
      * encodes the given message to bytes array
      *
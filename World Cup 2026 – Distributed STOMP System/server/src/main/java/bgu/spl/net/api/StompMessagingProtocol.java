@@ -14,4 +14,12 @@ public interface StompMessagingProtocol<T>  {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+	/**
+	 * Called once the connection is closed, whatever the reason (DISCONNECT, ERROR, end of stream,
+	 * missed heart-beats), after every message it delivered has been processed and on the same
+	 * thread as {@link #process}. Lets the protocol release what the client held, e.g. its login.
+	 */
+    default void connectionClosed() {
+    }
 }
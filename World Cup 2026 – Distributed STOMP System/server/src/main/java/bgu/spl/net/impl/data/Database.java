@@ -1,30 +1,31 @@
 package bgu.spl.net.impl.data;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.util.concurrent.ConcurrentHashMap;
-
 /**
  * Manages the server's data persistence and user state.
  * Acts as a bridge between the Java server and the Python SQL backend.
+ * <p>
+ * Reads (startup load, report) are synchronous. Writes (registrations, login history, file
+ * tracking) go through a write-behind queue, so CONNECT and SEND handling never wait on SQLite;
+ * the in-memory maps are the source of truth while the server runs.
  */
 public class Database {
     
-    private final ConcurrentHashMap<String, User> userMap;
-    private final ConcurrentHashMap<Integer, User> connectionsIdMap;
+    // How long printReport() waits for queued writes to reach SQLite.
+    private static final long REPORT_FLUSH_TIMEOUT_MILLIS = 5000;
+
+    private final UserRegistry users;
     private final String sqlHost;
     private final int sqlPort;
+    private final SqlClient sqlClient;
+    private final SqlWriteBehind writeBehind;
 
     private Database() {
-        userMap = new ConcurrentHashMap<>();
-        connectionsIdMap = new ConcurrentHashMap<>();
+        users = new UserRegistry();
         // SQL server connection details
         this.sqlHost = "127.0.0.1";
         this.sqlPort = 7778;
+        this.sqlClient = new SqlClient(sqlHost, sqlPort);
+        this.writeBehind = new SqlWriteBehind(sqlClient);
 
         initialize();
     }
@@ -66,7 +67,7 @@ public class Database {
                             String username = userParts[0].trim();
                             String password = userParts[1].trim();
                             // Load into memory (id=-1 because they are not currently connected)
-                            userMap.put(username, new User(-1, username, password));
+                            users.add(new User(-1, username, password));
                         }
                     }
                     System.out.println(">> Database: Loaded " + (parts.length - 1) + " users from SQL.");
@@ -90,34 +91,24 @@ public class Database {
     }
 
     /**
-     * Executes a raw SQL query via the Python server bridge.
+     * Executes a raw SQL query via the Python server bridge and waits for its result.
+     * Uses a pooled, persistent connection to the SQL server.
      *
      * @param sql the SQL query string
      * @return the raw result string from the SQL server
      */
     private String executeSQL(String sql) {
-        try (Socket socket = new Socket(sqlHost, sqlPort);
-             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"))) {
-             
-            // Send SQL with null terminator
-            out.write(sql);
-            out.write('\0');
-            out.flush();
-            
-            // Read response until null terminator
-            StringBuilder response = new StringBuilder();
-            int c;
-            while ((c = in.read()) != -1) {
-                if (c == '\0') break;
-                response.append((char) c);
-            }
-            return response.toString();
-            
-        } catch (Exception e) {
-            System.err.println("SQL Error: " + e.getMessage());
-            return "ERROR:" + e.getMessage();
-        }
+        return sqlClient.execute(sql);
+    }
+
+    /**
+     * Queues an INSERT/UPDATE statement on the write-behind queue and returns immediately.
+     * Statements are written in submission order, batched with those of other connections.
+     *
+     * @param sql the SQL statement
+     */
+    private void executeLater(String sql) {
+        writeBehind.submit(sql);
     }
 
     /**
@@ -131,21 +122,20 @@ public class Database {
     }
 
     /**
-     * Adds a user to the in-memory maps.
-     * J7: Only insert into connectionsIdMap when the user has a real connection (id != -1).
-     *     Users loaded from the DB at startup have id=-1 and must not pollute the map.
+     * Adds a user to the in-memory registry.
+     * J7: Only users with a real connection (id != -1) are indexed by connection.
+     *     Users loaded from the DB at startup have id=-1 and must not pollute that index.
      * @param user the user to add
      */
     public void addUser(User user) {
-        userMap.putIfAbsent(user.name, user);
-        if (user.getConnectionId() != -1) {
-            connectionsIdMap.putIfAbsent(user.getConnectionId(), user);
-        }
+        users.add(user);
     }
 
     /**
      * Handles user login logic.
      * Checks credentials, updates connection ID, and logs the event to SQL.
+     * Registration and login are single atomic operations on the {@link UserRegistry};
+     * no lock is shared between different usernames.
      *
      * @param connectionId the connection ID of the client
      * @param username the username provided
@@ -153,28 +143,20 @@ public class Database {
      * @return the status of the login attempt
      */
     public LoginStatus login(int connectionId, String username, String password) {
-        if (connectionsIdMap.containsKey(connectionId)) {
-            return LoginStatus.CLIENT_ALREADY_CONNECTED;
-        }
-        if (addNewUserCase(connectionId, username, password)) {
+        LoginStatus status = users.login(connectionId, username, password);
+        if (status == LoginStatus.ADDED_NEW_USER) {
             // Log new user registration in SQL
             String sql = String.format(
                 "INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
                 escapeSql(username), escapeSql(password)
             );
-            executeSQL(sql);
-            
+            executeLater(sql);
+        }
+        if (status == LoginStatus.ADDED_NEW_USER || status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
             // Log login
             logLogin(username);
-            return LoginStatus.ADDED_NEW_USER;
-        } else {
-            LoginStatus status = userExistsCase(connectionId, username, password);
-            if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
-                // Log successful login in SQL
-                logLogin(username);
-            }
-            return status;
         }
+        return status;
     }
 
     /**
@@ -185,45 +167,7 @@ public class Database {
             "INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
             escapeSql(username)
         );
-        executeSQL(sql);
-    }
-
-    /**
-     * Handles logic for existing users attempting to login.
-     * J1: Check password BEFORE checking isLoggedIn — wrong-password errors must not
-     *     be swallowed when the user happens to be logged in elsewhere.
-     */
-    private LoginStatus userExistsCase(int connectionId, String username, String password) {
-        User user = userMap.get(username);
-        synchronized (user) {
-            if (!user.password.equals(password)) {
-                return LoginStatus.WRONG_PASSWORD;
-            } else if (user.isLoggedIn()) {
-                return LoginStatus.ALREADY_LOGGED_IN;
-            } else {
-                user.login();
-                user.setConnectionId(connectionId);
-                connectionsIdMap.put(connectionId, user);
-                return LoginStatus.LOGGED_IN_SUCCESSFULLY;
-            }
-        }
-    }
-
-    /**
-     * Handles logic for new user registration.
-     */
-    private boolean addNewUserCase(int connectionId, String username, String password) {
-        if (!userMap.containsKey(username)) {
-            synchronized (userMap) {
-                if (!userMap.containsKey(username)) {
-                    User user = new User(connectionId, username, password);
-                    user.login();
-                    addUser(user);
-                    return true;
-                }
-            }
-        }
-        return false;
+        executeLater(sql);
     }
 
     /**
@@ -233,7 +177,7 @@ public class Database {
      * @param connectionsId the connection ID to log out
      */
     public void logout(int connectionsId) {
-        User user = connectionsIdMap.get(connectionsId);
+        User user = users.logout(connectionsId);
         if (user != null) {
             // J9: Standard SQLite does not support UPDATE ... ORDER BY ... LIMIT.
             //     Use a subquery that selects the rowid of the most recent open session.
@@ -244,10 +188,7 @@ public class Database {
                 "ORDER BY login_time DESC LIMIT 1)",
                 escapeSql(user.name)
             );
-            executeSQL(sql);
-            
-            user.logout();
-            connectionsIdMap.remove(connectionsId);
+            executeLater(sql);
         }
     }
 
@@ -264,14 +205,17 @@ public class Database {
             "VALUES ('%s', '%s', datetime('now'), '%s')",
             escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
         );
-        executeSQL(sql);
+        executeLater(sql);
     }
 
     /**
      * Generates and prints a comprehensive server report using SQL queries.
      * Fetches real-time data from the SQL backend regarding users, login history, and files.
+     * Pending write-behind statements are flushed first, so the report is up to date.
      */
     public void printReport() {
+        writeBehind.flush(REPORT_FLUSH_TIMEOUT_MILLIS);
+
         System.out.println(repeat("=", 80));
         System.out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
         System.out.println(repeat("=", 80));
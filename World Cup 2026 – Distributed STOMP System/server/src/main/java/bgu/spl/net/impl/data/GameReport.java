@@ -0,0 +1,119 @@
+package bgu.spl.net.impl.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One game event as reported by a client, parsed from the body of its SEND frame:
+ * <pre>
+ * user: alice
+ * team a: Germany
+ * team b: Japan
+ * event name: goal!!!!
+ * time: 1980
+ * general game updates:
+ *     active: true
+ * team a updates:
+ *     goals: 1
+ * team b updates:
+ * description:
+ * Germany scores...
+ * </pre>
+ * The parsing rules are those of the client's own MESSAGE handler, so the server aggregates
+ * exactly what the clients' {@code summary} command would.
+ */
+public final class GameReport {
+
+    // Indexes into updates; the stat sections of a report, in the order they are rendered.
+    static final int GENERAL = 0;
+    static final int TEAM_A = 1;
+    static final int TEAM_B = 2;
+    static final int SECTIONS = 3;
+    private static final int DESCRIPTION = 3;
+
+    final String user;
+    final String teamA;
+    final String teamB;
+    final String eventName;
+    final int time;
+    // Stat updates as key/value pairs, in body order.
+    final List<List<String[]>> updates;
+    final String description;
+
+    private GameReport(String user, String teamA, String teamB, String eventName, int time,
+            List<List<String[]>> updates, String description) {
+        this.user = user;
+        this.teamA = teamA;
+        this.teamB = teamB;
+        this.eventName = eventName;
+        this.time = time;
+        this.updates = updates;
+        this.description = description;
+    }
+
+    /**
+     * Parses the body of a SEND frame.
+     *
+     * @return the report, or {@code null} if the body is not a game event (it has no user line)
+     */
+    public static GameReport parse(String body) {
+        if (!body.startsWith("user:")) {
+            return null;
+        }
+        String user = null;
+        String teamA = "";
+        String teamB = "";
+        String eventName = "";
+        int time = 0;
+        StringBuilder description = new StringBuilder();
+        List<List<String[]>> updates = new ArrayList<>(SECTIONS);
+        for (int i = 0; i < SECTIONS; i++) {
+            updates.add(new ArrayList<>());
+        }
+        int section = -1;
+
+        for (String line : body.split("\n")) {
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.startsWith("user:")) {
+                user = line.substring(5).trim();
+            } else if (line.startsWith("team a:")) {
+                teamA = line.substring(7).trim();
+            } else if (line.startsWith("team b:")) {
+                teamB = line.substring(7).trim();
+            } else if (line.startsWith("event name:")) {
+                eventName = line.substring(11).trim();
+            } else if (line.startsWith("time:")) {
+                try {
+                    time = Integer.parseInt(line.substring(5).trim());
+                } catch (NumberFormatException e) {
+                    time = 0;
+                }
+            } else if (line.equals("general game updates:")) {
+                section = GENERAL;
+            } else if (line.equals("team a updates:")) {
+                section = TEAM_A;
+            } else if (line.equals("team b updates:")) {
+                section = TEAM_B;
+            } else if (line.startsWith("description:")) {
+                section = DESCRIPTION;
+            } else if (section == DESCRIPTION) {
+                description.append(line).append('\n');
+            } else if (section >= 0) {
+                int colon = line.indexOf(':');
+                if (colon >= 0) {
+                    updates.get(section).add(new String[] {
+                            line.substring(0, colon).trim(), line.substring(colon + 1).trim() });
+                }
+            }
+        }
+        if (user == null || user.isEmpty()) {
+            return null;
+        }
+        return new GameReport(user, teamA, teamB, eventName, time, updates, description.toString());
+    }
+}
@@ -0,0 +1,233 @@
+package bgu.spl.net.impl.data;
+
+import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.DestinationTrie;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The running state of every game, folded from the reports published on its destination.
+ * <p>
+ * For each game and each reporter the server keeps what a client's {@code summary} command
+ * derives from the reporter's events: the latest value of every general, team a and team b
+ * stat, and the events ordered by game time. Each report is applied once, as it is published,
+ * so a client that joins late can ask for the whole state in one frame
+ * ({@link #snapshot(String)}) instead of having hundreds of reports replayed to it.
+ * <p>
+ * A stat is set by the last report that mentions it, in publishing order. The number of games
+ * and the events kept per reporter are bounded; past the limits, new games are not tracked and
+ * a reporter's earliest events are dropped (its stats stay complete).
+ * <p>
+ * Each server has its own instance ({@link #of(Connections)}): a snapshot's sequence number
+ * belongs to the message sequence of one server, so servers sharing the JVM must not share
+ * game state.
+ */
+public final class GameSummaries {
+
+    private static final int MAX_GAMES = Integer.getInteger("stomp.summary.maxGames", 4096);
+    private static final int MAX_EVENTS = Integer.getInteger("stomp.summary.maxEvents", 1024);
+    // Destinations (wildcards allowed, comma-separated) that carry game reports; the client
+    // publishes each game on a single-segment destination such as /germany_japan.
+    private static final String[] GAME_DESTINATIONS = Arrays.stream(
+            System.getProperty("stomp.summary.destinations", "/*").split(","))
+            .map(String::trim)
+            .filter(pattern -> !pattern.isEmpty())
+            .toArray(String[]::new);
+
+    /**
+     * The state of a game at one point of its message sequence.
+     */
+    public static final class Snapshot {
+        /** The {@code message-id} of the latest report included, 0 if there is none. */
+        public final long lastSeq;
+        /** The state in the report layout, one block per reporter; empty if there is none. */
+        public final String body;
+
+        Snapshot(long lastSeq, String body) {
+            this.lastSeq = lastSeq;
+            this.body = body;
+        }
+    }
+
+    /** One event in a reporter's timeline. */
+    private static final class Event {
+        final int time;
+        final String name;
+        final String description;
+
+        Event(int time, String name, String description) {
+            this.time = time;
+            this.name = name;
+            this.description = description;
+        }
+    }
+
+    /** What one reporter has told about one game. */
+    private static final class Reporter {
+        String teamA;
+        String teamB;
+        // Sorted by stat name, like the summary file.
+        final List<TreeMap<String, String>> stats = new ArrayList<>(GameReport.SECTIONS);
+        final ArrayList<Event> events = new ArrayList<>();
+
+        Reporter() {
+            for (int i = 0; i < GameReport.SECTIONS; i++) {
+                stats.add(new TreeMap<>());
+            }
+        }
+    }
+
+    /** One game; guarded by its own monitor. */
+    private static final class Game {
+        // Reporters in the order of their first report.
+        final Map<String, Reporter> reporters = new LinkedHashMap<>();
+        long lastSeq = 0;
+    }
+
+    private static final String[] SECTION_TITLES = {
+            "general game updates:", "team a updates:", "team b updates:" };
+
+    private static final Snapshot EMPTY = new Snapshot(0, "");
+
+    private final ConcurrentHashMap<String, Game> games = new ConcurrentHashMap<>();
+
+    private GameSummaries() {
+    }
+
+    /**
+     * The instance of each server, keyed by the server's {@link Connections}; dropped with it.
+     */
+    private static final Map<Connections<?>, GameSummaries> INSTANCES = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * @return the game state of the server whose clients share {@code connections}
+     */
+    public static GameSummaries of(Connections<?> connections) {
+        return INSTANCES.computeIfAbsent(connections, c -> new GameSummaries());
+    }
+
+    /**
+     * @return true if the state of the game published on {@code destination} is kept, so its
+     *         reports are worth parsing; false for other destinations, or if game state is not
+     *         kept at all ({@code stomp.summary.maxGames} is 0)
+     */
+    public boolean tracks(String destination) {
+        if (MAX_GAMES <= 0) {
+            return false;
+        }
+        for (String pattern : GAME_DESTINATIONS) {
+            if (DestinationTrie.matches(pattern, destination)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Folds a report into the state of the game published on {@code destination}.
+     *
+     * @param seq the report's sequence number on the destination; reports are applied in
+     *            sequence order, and a lower number means the destination's numbering started
+     *            over (see {@code stomp.replay.maxChannels})
+     */
+    public void apply(String destination, long seq, GameReport report) {
+        Game game = games.get(destination);
+        if (game == null) {
+            if (games.size() >= MAX_GAMES) {
+                return;
+            }
+            game = games.computeIfAbsent(destination, d -> new Game());
+        }
+        synchronized (game) {
+            Reporter reporter = game.reporters.computeIfAbsent(report.user, u -> new Reporter());
+            reporter.teamA = report.teamA;
+            reporter.teamB = report.teamB;
+            for (int i = 0; i < GameReport.SECTIONS; i++) {
+                TreeMap<String, String> stats = reporter.stats.get(i);
+                for (String[] update : report.updates.get(i)) {
+                    stats.put(update[0], update[1]);
+                }
+            }
+            insertByTime(reporter.events, new Event(report.time, report.eventName, report.description));
+            if (reporter.events.size() > MAX_EVENTS) {
+                reporter.events.remove(0);
+            }
+            game.lastSeq = seq;
+        }
+    }
+
+    /**
+     * Inserts after the events of the same time or earlier; reports nearly always arrive in
+     * time order, so this is an append.
+     */
+    private static void insertByTime(ArrayList<Event> events, Event event) {
+        int i = events.size();
+        while (i > 0 && events.get(i - 1).time > event.time) {
+            i--;
+        }
+        events.add(i, event);
+    }
+
+    /**
+     * Renders the state of a game, one block per reporter in the layout of a report, with every
+     * event under {@code events:} as {@code <time> - <name>:} followed by its description
+     * indented by four spaces:
+     * <pre>
+     * user: alice
+     * team a: Germany
+     * team b: Japan
+     * general game updates:
+     *     active: true
+     * team a updates:
+     *     goals: 1
+     * team b updates:
+     * events:
+     * 0 - kickoff:
+     *     The game has started!
+     * </pre>
+     * Blocks are separated by a blank line.
+     */
+    public Snapshot snapshot(String destination) {
+        Game game = games.get(destination);
+        if (game == null) {
+            return EMPTY;
+        }
+        StringBuilder body = new StringBuilder(1024);
+        long lastSeq;
+        synchronized (game) {
+            lastSeq = game.lastSeq;
+            for (Map.Entry<String, Reporter> entry : game.reporters.entrySet()) {
+                Reporter reporter = entry.getValue();
+                if (body.length() > 0) {
+                    body.append('\n');
+                }
+                body.append("user: ").append(entry.getKey()).append('\n')
+                        .append("team a: ").append(reporter.teamA).append('\n')
+                        .append("team b: ").append(reporter.teamB).append('\n');
+                for (int i = 0; i < GameReport.SECTIONS; i++) {
+                    body.append(SECTION_TITLES[i]).append('\n');
+                    for (Map.Entry<String, String> stat : reporter.stats.get(i).entrySet()) {
+                        body.append("    ").append(stat.getKey()).append(": ").append(stat.getValue()).append('\n');
+                    }
+                }
+                body.append("events:\n");
+                for (Event event : reporter.events) {
+                    body.append(event.time).append(" - ").append(event.name).append(":\n");
+                    for (String line : event.description.split("\n")) {
+                        if (!line.isEmpty()) {
+                            body.append("    ").append(line).append('\n');
+                        }
+                    }
+                }
+            }
+        }
+        return new Snapshot(lastSeq, body.toString());
+    }
+}
@@ -0,0 +1,132 @@
+package bgu.spl.net.impl.data;
+
+import bgu.spl.net.srv.Histogram;
+import bgu.spl.net.srv.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A small pool of persistent connections to the Python SQL server.
+ * <p>
+ * The bridge protocol is request/response: a NUL-terminated SQL string goes out, a
+ * NUL-terminated result comes back, and the Python side keeps serving the same socket
+ * until it is closed. Instead of paying a TCP handshake per statement, every caller borrows an
+ * open connection, runs one request on it and returns it to the pool.
+ */
+class SqlClient {
+
+    // How many idle connections are kept open between requests.
+    private static final int POOL_SIZE = Integer.getInteger("stomp.sql.poolSize", 4);
+
+    // Time from sending a request to having its whole result, connection setup excluded.
+    private static final Histogram ROUND_TRIP_MICROS = Metrics.histogram("sql.roundtrip.micros");
+
+    private final String host;
+    private final int port;
+    private final ArrayBlockingQueue<Connection> idle = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    SqlClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Sends one request to the SQL server and waits for its result.
+     * A request that fails on a pooled connection (e.g. the Python server was restarted) is
+     * retried once on a fresh connection.
+     *
+     * @param sql the SQL text (may hold several statements for non-SELECT requests)
+     * @return the raw result string, or {@code "ERROR:<reason>"} if the server is unreachable
+     */
+    String execute(String sql) {
+        byte[] request = sql.getBytes(StandardCharsets.UTF_8);
+        for (int attempt = 0; ; attempt++) {
+            Connection conn = idle.poll();
+            boolean pooled = conn != null;
+            try {
+                if (conn == null) {
+                    conn = new Connection(host, port);
+                }
+                long start = System.nanoTime();
+                String response = conn.roundTrip(request);
+                ROUND_TRIP_MICROS.record((System.nanoTime() - start) / 1000);
+                if (!idle.offer(conn)) {
+                    conn.close();
+                }
+                return response;
+            } catch (IOException e) {
+                if (conn != null) {
+                    conn.close();
+                }
+                if (!pooled || attempt > 0) {
+                    System.err.println("SQL Error: " + e.getMessage());
+                    return "ERROR:" + e.getMessage();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    void close() {
+        Connection conn;
+        while ((conn = idle.poll()) != null) {
+            conn.close();
+        }
+    }
+
+    /**
+     * One open socket to the SQL server.
+     */
+    private static final class Connection implements Closeable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final ByteArrayOutputStream response = new ByteArrayOutputStream(256);
+
+        Connection(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedInputStream(socket.getInputStream());
+        }
+
+        String roundTrip(byte[] request) throws IOException {
+            // Send SQL with null terminator
+            byte[] framed = new byte[request.length + 1];
+            System.arraycopy(request, 0, framed, 0, request.length);
+            out.write(framed);
+            out.flush();
+
+            // Read response until null terminator
+            response.reset();
+            int c;
+            while ((c = in.read()) != 0) {
+                if (c == -1) {
+                    throw new EOFException("SQL server closed the connection");
+                }
+                response.write(c);
+            }
+            return response.toString(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Nothing left to do with a broken socket
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package bgu.spl.net.impl.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for INSERT/UPDATE statements.
+ * <p>
+ * Callers only enqueue their statement and return at once; a single background thread
+ * collects statements from all connections and sends them to the SQL server as one
+ * multi-statement request inside a transaction. A batch is flushed as soon as it holds
+ * {@code stomp.sql.batchSize} statements, or {@code stomp.sql.flushMillis} after its first
+ * statement arrived, whichever comes first.
+ * <p>
+ * Statements are executed in submission order, so e.g. a logout UPDATE never overtakes the
+ * login INSERT it refers to.
+ */
+class SqlWriteBehind implements Runnable {
+
+    private static final int BATCH_SIZE = Integer.getInteger("stomp.sql.batchSize", 64);
+    private static final long FLUSH_MILLIS = Long.getLong("stomp.sql.flushMillis", 5);
+    // Producers block once this many statements are waiting (SQLite cannot keep up).
+    private static final int QUEUE_CAPACITY = Integer.getInteger("stomp.sql.queueCapacity", 1 << 16);
+
+    private final SqlClient client;
+    private final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final List<String> batch = new ArrayList<>(BATCH_SIZE);
+
+    // Number of statements submitted / written so far; flush() waits for the two to meet.
+    private long submitted = 0;
+    private long completed = 0;
+    private final Object progress = new Object();
+
+    SqlWriteBehind(SqlClient client) {
+        this.client = client;
+        Thread writer = new Thread(this, "sql-write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a statement for execution. Never waits on SQLite, only on a full queue.
+     *
+     * @param sql a single INSERT/UPDATE/DELETE statement
+     */
+    void submit(String sql) {
+        synchronized (progress) {
+            submitted++;
+        }
+        try {
+            queue.put(sql);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            markCompleted(1); // Dropped: do not let flush() wait for it
+        }
+    }
+
+    /**
+     * Blocks until every statement submitted before this call has been written.
+     *
+     * @param timeoutMillis upper bound on the wait
+     */
+    void flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (progress) {
+            long target = submitted;
+            long left;
+            while (completed < target && (left = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    progress.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_MILLIS);
+                while (batch.size() < BATCH_SIZE) {
+                    queue.drainTo(batch, BATCH_SIZE - batch.size());
+                    long left = deadline - System.nanoTime();
+                    if (batch.size() >= BATCH_SIZE || left <= 0) {
+                        break;
+                    }
+                    String next = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                write(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                markCompleted(batch.size());
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes one batch in a single request. If the batch fails as a whole (the transaction is
+     * rolled back), its statements are retried one by one so that a single bad statement only
+     * loses itself.
+     */
+    private void write(List<String> statements) {
+        if (statements.size() == 1) {
+            report(statements.get(0), client.execute(statements.get(0)));
+            return;
+        }
+
+        StringBuilder script = new StringBuilder("BEGIN;\n");
+        for (String sql : statements) {
+            script.append(sql).append(";\n");
+        }
+        script.append("COMMIT;");
+
+        if (!client.execute(script.toString()).startsWith("SUCCESS")) {
+            for (String sql : statements) {
+                report(sql, client.execute(sql));
+            }
+        }
+    }
+
+    private static void report(String sql, String response) {
+        if (!response.startsWith("SUCCESS")) {
+            System.err.println(">> Database: write failed (" + response + "): " + sql);
+        }
+    }
+
+    private void markCompleted(int count) {
+        if (count == 0) {
+            return;
+        }
+        synchronized (progress) {
+            completed += count;
+            progress.notifyAll();
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package bgu.spl.net.impl.data;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class User {
 	public final String name;
 	public final String password;
-	private int connectionId;
-	private boolean isLoggedIn = false;
+	private volatile int connectionId;
+	// Flipped with CAS so that two connections racing to log in as this user cannot both win.
+	private final AtomicBoolean isLoggedIn = new AtomicBoolean(false);
 
 	public User(int connectionId, String name, String password) {
 		this.connectionId = connectionId;
@@ -13,24 +16,33 @@ public class User {
 	}
 
 	public boolean isLoggedIn() {
-		return isLoggedIn;
+		return isLoggedIn.get();
 	}
 
 	public void login() {
-		isLoggedIn = true;
+		isLoggedIn.set(true);
+	}
+
+	/**
+	 * Atomically logs the user in on the given connection.
+	 *
+	 * @return false if the user was already logged in (on any connection)
+	 */
+	public boolean tryLogin(int connectionId) {
+		if (!isLoggedIn.compareAndSet(false, true)) {
+			return false;
+		}
+		this.connectionId = connectionId;
+		return true;
 	}
 
 	public void logout() {
-		isLoggedIn = false;
+		isLoggedIn.set(false);
 	}
 
 	public int getConnectionId() {
 		return connectionId;
 	}
 
-	public void setConnectionId(int connectionId) {
-		this.connectionId = connectionId;
-	}
-
 
 }
@@ -0,0 +1,76 @@
+package bgu.spl.net.impl.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The in-memory registry of users and of the connections they are logged in on.
+ * <p>
+ * There is no registry-wide lock: registering a name is a single {@code computeIfAbsent} on a
+ * {@link ConcurrentHashMap}, which only locks the hash bin of that name, and logging in an
+ * existing user is a CAS on its {@link User} state. A stampede of new fans registering at
+ * kickoff therefore proceeds in parallel, only colliding on the same username.
+ */
+class UserRegistry {
+
+    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, User> byConnection = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a known user (e.g. loaded from SQL at startup, with connection id -1).
+     */
+    void add(User user) {
+        users.putIfAbsent(user.name, user);
+        if (user.getConnectionId() != -1) {
+            byConnection.putIfAbsent(user.getConnectionId(), user);
+        }
+    }
+
+    /**
+     * Registers the user if the name is new, otherwise checks the password and logs in.
+     * J1: the password is checked BEFORE the logged-in state, so a wrong password is reported
+     *     even when the user happens to be logged in elsewhere.
+     *
+     * @return the outcome of the attempt
+     */
+    LoginStatus login(int connectionId, String username, String password) {
+        // A connection's own CONNECT frames are processed one at a time, so this check cannot race.
+        if (byConnection.containsKey(connectionId)) {
+            return LoginStatus.CLIENT_ALREADY_CONNECTED;
+        }
+
+        boolean[] created = { false };
+        User user = users.computeIfAbsent(username, name -> {
+            User fresh = new User(connectionId, name, password);
+            fresh.tryLogin(connectionId);
+            created[0] = true;
+            return fresh;
+        });
+
+        if (created[0]) {
+            byConnection.put(connectionId, user);
+            return LoginStatus.ADDED_NEW_USER;
+        }
+        if (!user.password.equals(password)) {
+            return LoginStatus.WRONG_PASSWORD;
+        }
+        if (!user.tryLogin(connectionId)) {
+            return LoginStatus.ALREADY_LOGGED_IN;
+        }
+        byConnection.put(connectionId, user);
+        return LoginStatus.LOGGED_IN_SUCCESSFULLY;
+    }
+
+    /**
+     * Logs out whoever is logged in on the connection. Safe to call more than once:
+     * only the first call finds the user.
+     *
+     * @return the user that was logged out, or {@code null} if there was none
+     */
+    User logout(int connectionId) {
+        User user = byConnection.remove(connectionId);
+        if (user != null) {
+            user.logout();
+        }
+        return user;
+    }
+}
@@ -1,7 +1,8 @@
 package bgu.spl.net.impl.stomp;
 
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 
@@ -9,13 +10,13 @@ import bgu.spl.net.api.MessageEncoderDecoder;
  * Encodes and decodes STOMP frames over a byte stream.
  *
  * <p>STOMP frames are terminated by the NUL byte ({@code 0}). This implementation
- * accumulates incoming bytes until the terminator is reached, then returns the
- * decoded UTF-8 string representing the complete frame.</p>
+ * accumulates incoming bytes until the terminator is reached, then parses the bytes
+ * of the complete frame straight into a {@link StompFrame}.</p>
  *
  * <p>Note: This class is stateful and is expected to be used per-connection
  * (not shared across multiple connections concurrently).</p>
  */
-public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
+public class StompEncoderDecoder implements MessageEncoderDecoder<StompFrame> {
 
     /** Initial buffer size (1KB). The buffer grows automatically if needed. */
     private static final int BUFFER_INITIAL_SIZE = 1 << 10;
@@ -28,16 +29,16 @@ public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
 
     /**
      * Consumes the next byte from the stream and returns a full STOMP frame
-     * string once the frame terminator (NUL) is encountered.
+     * once the frame terminator (NUL) is encountered.
      *
      * @param nextByte the next byte from the connection input stream
-     * @return the decoded STOMP frame as a String when complete; otherwise {@code null}
+     * @return the decoded STOMP frame when complete; otherwise {@code null}
      */
     @Override
-    public String decodeNextByte(byte nextByte) {
+    public StompFrame decodeNextByte(byte nextByte) {
         // STOMP frames end with the NUL byte (0).
         if (nextByte == 0) {
-            return popString();
+            return popFrame();
         }
 
         // Frame not complete yet; keep buffering.
@@ -45,18 +46,87 @@ public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
         return null;
     }
 
+    /**
+     * Decodes every complete frame in {@code buf} in bulk.
+     *
+     * <p>Instead of a call per byte, the buffer is scanned for the NUL terminator and the
+     * bytes in between are handled as one contiguous slice. A frame that lies entirely
+     * inside a heap buffer is parsed straight from its backing array; otherwise the slice is
+     * copied into {@link #buffer} with a single bulk {@code get}. The unterminated tail of the
+     * buffer is kept for the next call.</p>
+     *
+     * <p>A buffer without an accessible array, such as the reactor's direct read buffers, is
+     * copied into {@link #buffer} whole with one bulk {@code get}, and the frames are then
+     * scanned and parsed from there (see {@link #decodeCopied}).</p>
+     *
+     * @param buf      bytes read from the connection, from position to limit
+     * @param consumer receives each decoded frame, in order
+     */
+    @Override
+    public void decode(ByteBuffer buf, Consumer<StompFrame> consumer) {
+        if (!buf.hasArray()) {
+            decodeCopied(buf, consumer);
+            return;
+        }
+        while (buf.hasRemaining()) {
+            int start = buf.position();
+            int end = indexOfNul(buf, start, buf.limit());
+
+            if (end < 0) {
+                // Frame not complete yet; keep buffering.
+                pushBytes(buf, buf.limit() - start);
+                return;
+            }
+
+            if (length == 0) {
+                // The whole frame is in this buffer: parse it in place, no copy.
+                StompFrame frame = StompFrame.parse(buf.array(), buf.arrayOffset() + start, end - start);
+                buf.position(end + 1);
+                consumer.accept(frame);
+            } else {
+                pushBytes(buf, end - start);
+                buf.get(); // skip the NUL terminator
+                consumer.accept(popFrame());
+            }
+        }
+    }
+
+    /**
+     * Decodes a buffer whose bytes cannot be reached through an array (a direct buffer).
+     *
+     * <p>Reading a direct buffer byte by byte costs a bounds-checked call per byte, so its bytes
+     * are appended to {@link #buffer} with a single bulk {@code get} instead. Only the new bytes
+     * are scanned for terminators; every complete frame is parsed in place from
+     * {@link #buffer}, and the unterminated tail is moved to its front for the next call.</p>
+     */
+    private void decodeCopied(ByteBuffer buf, Consumer<StompFrame> consumer) {
+        int scanFrom = length;
+        pushBytes(buf, buf.remaining());
+
+        int start = 0;
+        for (int i = scanFrom; i < length; i++) {
+            if (buffer[i] == 0) {
+                consumer.accept(StompFrame.parse(buffer, start, i - start));
+                start = i + 1;
+            }
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, length - start);
+            length -= start;
+        }
+    }
+
     /**
      * Encodes a STOMP frame for sending over the wire.
      *
      * <p>The STOMP protocol requires appending a terminating NUL byte to each frame.</p>
      *
-     * @param message a STOMP frame string (without the terminating NUL)
+     * @param message a STOMP frame
      * @return UTF-8 bytes of the frame + terminating NUL
      */
     @Override
-    public byte[] encode(String message) {
-        // Always specify UTF-8 explicitly (avoid platform-dependent defaults).
-        return (message + '\u0000').getBytes(StandardCharsets.UTF_8);
+    public byte[] encode(StompFrame message) {
+        return message.encode();
     }
 
     /**
@@ -72,12 +142,42 @@ public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
     }
 
     /**
-     * Converts the currently buffered bytes into a UTF-8 string and resets the buffer.
+     * Appends the next {@code count} bytes of {@code buf} to the internal buffer with one bulk copy.
+     *
+     * @param buf   the source buffer, advanced by {@code count}
+     * @param count the number of bytes to copy
+     */
+    private void pushBytes(ByteBuffer buf, int count) {
+        if (length + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+        }
+        buf.get(buffer, length, count);
+        length += count;
+    }
+
+    /**
+     * Finds the first NUL byte of a heap buffer in {@code [from, to)} without moving its position.
+     *
+     * @return the absolute index of the terminator, or {@code -1} if there is none
+     */
+    private static int indexOfNul(ByteBuffer buf, int from, int to) {
+        byte[] array = buf.array();
+        int offset = buf.arrayOffset();
+        for (int i = from; i < to; i++) {
+            if (array[offset + i] == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the currently buffered bytes into a frame and resets the buffer.
      *
-     * @return the decoded string representing the accumulated frame
+     * @return the accumulated frame
      */
-    private String popString() {
-        String result = new String(buffer, 0, length, StandardCharsets.UTF_8);
+    private StompFrame popFrame() {
+        StompFrame result = StompFrame.parse(buffer, 0, length);
         length = 0; // ready for the next frame
         return result;
     }
@@ -0,0 +1,279 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A single STOMP frame: a command, its headers and a body.
+ *
+ * <p>Incoming frames are built by {@link #parse(byte[], int, int)} in one pass over the raw
+ * bytes of the frame, so no intermediate String of the whole frame is ever created.
+ * Headers are kept in a compact array of alternating names and values, and the body stays
+ * a byte slice until someone actually needs it as text.</p>
+ *
+ * <p>Outgoing frames can be built with the public constructor and turned into wire bytes by
+ * {@link #encode()}. The server's own CONNECTED, RECEIPT and ERROR replies skip this step and
+ * are written from pre-encoded parts (see {@link StompFrames}) when the connections allow it.</p>
+ */
+public final class StompFrame {
+
+    /** The commands of STOMP 1.2 this server knows about. */
+    public enum Command {
+        CONNECT, STOMP, CONNECTED, SEND, SUBSCRIBE, UNSUBSCRIBE, DISCONNECT, MESSAGE, RECEIPT, ERROR,
+        /** Any command line that is not one of the above (see {@link StompFrame#commandName()}). */
+        UNKNOWN;
+
+        private final byte[] wireName = name().getBytes(StandardCharsets.US_ASCII);
+
+        // The commands a command line can match (all but UNKNOWN, which comes last), copied once
+        // here because values() clones the array on every call.
+        private static final Command[] KNOWN = Arrays.copyOf(values(), values().length - 1);
+
+        /**
+         * Matches a command line against the known commands without creating a String.
+         *
+         * @return the matching command, or {@link #UNKNOWN}
+         */
+        static Command of(byte[] data, int from, int to) {
+            int length = to - from;
+            for (Command command : KNOWN) {
+                byte[] name = command.wireName;
+                if (name.length == length && regionEquals(data, from, name)) {
+                    return command;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        private static boolean regionEquals(byte[] data, int from, byte[] name) {
+            for (int i = 0; i < name.length; i++) {
+                if (data[from + i] != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Command command;
+    /** The command line as received; only differs from {@code command.name()} for UNKNOWN frames. */
+    private final String commandName;
+    /** Header names and values, interleaved: {@code [name0, value0, name1, value1, ...]}. */
+    private final String[] headers;
+    private final int headerCount;
+    private final byte[] body;
+    private final int bodyOffset;
+    private final int bodyLength;
+
+    /**
+     * Creates an outgoing frame.
+     *
+     * @param command the frame command
+     * @param headers header names and values, interleaved
+     * @param body    the frame body (may be empty, never null)
+     */
+    public StompFrame(Command command, String[] headers, String body) {
+        this(command, command.name(), headers, headers.length / 2, toBytes(body), 0, -1);
+    }
+
+    private StompFrame(Command command, String commandName, String[] headers, int headerCount,
+                       byte[] body, int bodyOffset, int bodyLength) {
+        this.command = command;
+        this.commandName = commandName;
+        this.headers = headers;
+        this.headerCount = headerCount;
+        this.body = body;
+        this.bodyOffset = bodyOffset;
+        this.bodyLength = bodyLength < 0 ? body.length : bodyLength;
+    }
+
+    /**
+     * Parses the bytes of one frame (without its NUL terminator) in a single pass.
+     *
+     * <p>Leading EOLs (heart-beats between frames) are skipped, {@code \r\n} line endings are
+     * accepted, and header names and values are trimmed. The body is copied out of
+     * {@code data}, since the caller's buffer is reused for the next frame.</p>
+     *
+     * @param data   the buffer holding the frame
+     * @param offset index of the first byte of the frame
+     * @param length number of bytes in the frame
+     * @return the parsed frame
+     */
+    public static StompFrame parse(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int pos = offset;
+        while (pos < end && (data[pos] == '\n' || data[pos] == '\r')) {
+            pos++;
+        }
+
+        // 1. Command line
+        int lineEnd = indexOf(data, pos, end, (byte) '\n');
+        int commandEnd = lineEnd < 0 ? end : lineEnd;
+        int from = skipSpaces(data, pos, commandEnd);
+        int to = trimEnd(data, from, commandEnd);
+        Command command = Command.of(data, from, to);
+        String commandName = command == Command.UNKNOWN
+                ? new String(data, from, to - from, StandardCharsets.UTF_8)
+                : command.name();
+        pos = lineEnd < 0 ? end : lineEnd + 1;
+
+        // 2. Header lines, up to the first empty line
+        String[] headers = new String[8];
+        int count = 0;
+        while (pos < end) {
+            int newline = indexOf(data, pos, end, (byte) '\n');
+            int lineStop = newline < 0 ? end : newline;
+            int next = newline < 0 ? end : newline + 1;
+            if (lineStop > pos && data[lineStop - 1] == '\r') {
+                lineStop--;
+            }
+            if (lineStop == pos) {
+                pos = next; // empty line: the body starts right after it
+                break;
+            }
+
+            int colon = indexOf(data, pos, lineStop, (byte) ':');
+            if (colon >= 0) {
+                if (count * 2 == headers.length) {
+                    headers = Arrays.copyOf(headers, headers.length * 2);
+                }
+                headers[count * 2] = slice(data, pos, colon);
+                headers[count * 2 + 1] = slice(data, colon + 1, lineStop);
+                count++;
+            }
+            pos = next;
+        }
+
+        // 3. Body: everything that is left
+        byte[] body = pos < end ? Arrays.copyOfRange(data, pos, end) : EMPTY;
+        return new StompFrame(command, commandName, headers, count, body, 0, body.length);
+    }
+
+    public Command command() {
+        return command;
+    }
+
+    /**
+     * @return the command line as it was received (useful to report UNKNOWN commands)
+     */
+    public String commandName() {
+        return commandName;
+    }
+
+    /**
+     * Looks a header up by name. Frames carry only a handful of headers, so a linear scan
+     * beats hashing. As required by STOMP 1.2, the first occurrence of a repeated header wins.
+     *
+     * @param name the header name
+     * @return the header value, or {@code null} if the frame does not have it
+     */
+    public String header(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (headers[i * 2].equals(name)) {
+                return headers[i * 2 + 1];
+            }
+        }
+        return null;
+    }
+
+    public boolean hasHeader(String name) {
+        return header(name) != null;
+    }
+
+    public int bodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Copies the raw body bytes into {@code dest}, starting at {@code destPos}.
+     */
+    public void copyBody(byte[] dest, int destPos) {
+        System.arraycopy(body, bodyOffset, dest, destPos, bodyLength);
+    }
+
+    /**
+     * @return the body decoded as UTF-8 text
+     */
+    public String bodyAsString() {
+        return new String(body, bodyOffset, bodyLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serialises the frame for the wire, including the terminating NUL byte.
+     *
+     * @return UTF-8 bytes of the frame
+     */
+    public byte[] encode() {
+        byte[] commandLine = command == Command.UNKNOWN
+                ? commandName.getBytes(StandardCharsets.UTF_8)
+                : command.wireName;
+        byte[][] encodedHeaders = new byte[headerCount * 2][];
+        int size = commandLine.length + 1 + 1 + bodyLength + 1;
+        for (int i = 0; i < encodedHeaders.length; i++) {
+            encodedHeaders[i] = headers[i].getBytes(StandardCharsets.UTF_8);
+            size += encodedHeaders[i].length + 1; // ':' after a name, '\n' after a value
+        }
+
+        byte[] out = new byte[size];
+        System.arraycopy(commandLine, 0, out, 0, commandLine.length);
+        int pos = commandLine.length;
+        out[pos++] = '\n';
+        for (int i = 0; i < encodedHeaders.length; i += 2) {
+            System.arraycopy(encodedHeaders[i], 0, out, pos, encodedHeaders[i].length);
+            pos += encodedHeaders[i].length;
+            out[pos++] = ':';
+            System.arraycopy(encodedHeaders[i + 1], 0, out, pos, encodedHeaders[i + 1].length);
+            pos += encodedHeaders[i + 1].length;
+            out[pos++] = '\n';
+        }
+        out[pos++] = '\n';
+        System.arraycopy(body, bodyOffset, out, pos, bodyLength);
+        pos += bodyLength;
+        out[pos] = 0;
+        return out;
+    }
+
+    /**
+     * @return the frame as STOMP text, without the terminating NUL
+     */
+    @Override
+    public String toString() {
+        byte[] encoded = encode();
+        return new String(encoded, 0, encoded.length - 1, StandardCharsets.UTF_8);
+    }
+
+    private static String slice(byte[] data, int from, int to) {
+        from = skipSpaces(data, from, to);
+        to = trimEnd(data, from, to);
+        return new String(data, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpaces(byte[] data, int from, int to) {
+        while (from < to && data[from] <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(byte[] data, int from, int to) {
+        while (to > from && data[to - 1] <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private static byte[] toBytes(String s) {
+        return s == null || s.isEmpty() ? EMPTY : s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,158 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wire encodings of the frames the server itself replies with: CONNECTED, RECEIPT and ERROR.
+ * <p>
+ * Their fixed parts are encoded once, into read-only buffers that every reply shares through
+ * {@code duplicate()}. Only the variable parts (a receipt id, an error description) are encoded
+ * per frame, straight into bytes, so a reply never goes through a {@link StompFrame}, a
+ * {@code StringBuilder} or a concatenated String. The result is handed to
+ * {@link bgu.spl.net.srv.ConnectionsImpl#sendEncoded} as the parts of one frame.
+ */
+final class StompFrames {
+
+    private static final ByteBuffer CONNECTED = constant("CONNECTED\nversion:1.2\n\n\u0000");
+    private static final ByteBuffer CONNECTED_HEART_BEAT = constant("CONNECTED\nversion:1.2\nheart-beat:");
+
+    private static final byte[] RECEIPT_PREFIX = bytes("RECEIPT\nreceipt-id:");
+    private static final byte[] HEADERS_END_AND_NUL = bytes("\n\n\u0000");
+
+    private static final ByteBuffer ERROR_COMMAND = constant("ERROR\n");
+    private static final ByteBuffer RECEIPT_ID_HEADER = constant("receipt-id:");
+    private static final ByteBuffer MESSAGE_HEADER = constant("message:");
+    private static final ByteBuffer NEWLINE = constant("\n");
+    private static final ByteBuffer ERROR_BODY_START = constant("\n\nThe message:\n-----\nFailed: ");
+    private static final ByteBuffer ERROR_BODY_INFO = constant("\nInfo: ");
+    private static final ByteBuffer ERROR_BODY_END = constant("\n-----\n\u0000");
+
+    /**
+     * Encoded error summaries. The protocol only uses a handful of literal summaries, so each is
+     * encoded once; the cap keeps the table bounded should a caller ever pass computed text.
+     */
+    private static final int MAX_INTERNED = 64;
+    private static final ConcurrentHashMap<String, ByteBuffer> INTERNED = new ConcurrentHashMap<>();
+
+    private StompFrames() {
+    }
+
+    /**
+     * @return the parts of {@code CONNECTED\nversion:1.2\n\n}
+     */
+    static ByteBuffer[] connected() {
+        return new ByteBuffer[] { CONNECTED.duplicate() };
+    }
+
+    /**
+     * @return the parts of {@code CONNECTED\nversion:1.2\nheart-beat:<send>,<receive>\n\n}
+     */
+    static ByteBuffer[] connected(long sendMillis, long receiveMillis) {
+        return new ByteBuffer[] {
+                CONNECTED_HEART_BEAT.duplicate(),
+                encode(sendMillis + "," + receiveMillis),
+                ByteBuffer.wrap(HEADERS_END_AND_NUL)
+        };
+    }
+
+    /**
+     * @return the parts of a RECEIPT frame for the given receipt id, encoded into one buffer
+     */
+    static ByteBuffer[] receipt(String receiptId) {
+        byte[] utf8 = isAscii(receiptId) ? null : bytes(receiptId);
+        int idLength = utf8 == null ? receiptId.length() : utf8.length;
+        byte[] frame = new byte[RECEIPT_PREFIX.length + idLength + HEADERS_END_AND_NUL.length];
+        System.arraycopy(RECEIPT_PREFIX, 0, frame, 0, RECEIPT_PREFIX.length);
+        if (utf8 == null) {
+            copyAscii(receiptId, frame, RECEIPT_PREFIX.length);
+        } else {
+            System.arraycopy(utf8, 0, frame, RECEIPT_PREFIX.length, idLength);
+        }
+        System.arraycopy(HEADERS_END_AND_NUL, 0, frame, RECEIPT_PREFIX.length + idLength, HEADERS_END_AND_NUL.length);
+        return new ByteBuffer[] { ByteBuffer.wrap(frame) };
+    }
+
+    /**
+     * Builds the parts of an ERROR frame, with the same layout {@link StompMessagingProtocolImpl}
+     * has always sent:
+     * <pre>
+     * ERROR
+     * receipt-id:&lt;receipt&gt;     (only if the failed frame asked for a receipt)
+     * message:&lt;message&gt;
+     *
+     * The message:
+     * -----
+     * Failed: &lt;message&gt;
+     * Info: &lt;info&gt;
+     * -----
+     * </pre>
+     */
+    static ByteBuffer[] error(String receiptId, String message, String info) {
+        ByteBuffer summary = interned(message);
+        ByteBuffer[] parts = new ByteBuffer[receiptId != null ? 11 : 8];
+        int i = 0;
+        parts[i++] = ERROR_COMMAND.duplicate();
+        if (receiptId != null) {
+            parts[i++] = RECEIPT_ID_HEADER.duplicate();
+            parts[i++] = encode(receiptId);
+            parts[i++] = NEWLINE.duplicate();
+        }
+        parts[i++] = MESSAGE_HEADER.duplicate();
+        parts[i++] = summary.duplicate();
+        parts[i++] = ERROR_BODY_START.duplicate();
+        parts[i++] = summary.duplicate();
+        parts[i++] = ERROR_BODY_INFO.duplicate();
+        parts[i++] = encode(String.valueOf(info));
+        parts[i] = ERROR_BODY_END.duplicate();
+        return parts;
+    }
+
+    private static ByteBuffer interned(String text) {
+        ByteBuffer encoded = INTERNED.get(text);
+        if (encoded == null) {
+            encoded = encode(text).asReadOnlyBuffer();
+            if (INTERNED.size() < MAX_INTERNED) {
+                INTERNED.putIfAbsent(text, encoded);
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Encodes the text as UTF-8. Receipt ids and error texts are nearly always ASCII, which is
+     * copied char by char into the result without going through the charset encoder.
+     */
+    private static ByteBuffer encode(String text) {
+        if (!isAscii(text)) {
+            return ByteBuffer.wrap(bytes(text));
+        }
+        byte[] out = new byte[text.length()];
+        copyAscii(text, out, 0);
+        return ByteBuffer.wrap(out);
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void copyAscii(String text, byte[] dest, int offset) {
+        for (int i = 0; i < text.length(); i++) {
+            dest[offset + i] = (byte) text.charAt(i);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer constant(String text) {
+        return ByteBuffer.wrap(bytes(text)).asReadOnlyBuffer();
+    }
+}
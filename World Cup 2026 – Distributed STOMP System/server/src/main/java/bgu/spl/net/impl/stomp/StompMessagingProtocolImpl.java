@@ -3,12 +3,22 @@ package bgu.spl.net.impl.stomp;
 import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.srv.Connections;
 import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.DestinationTrie;
+import bgu.spl.net.srv.Metrics;
 import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.impl.data.GameReport;
+import bgu.spl.net.impl.data.GameSummaries;
 import bgu.spl.net.impl.data.LoginStatus;
+import bgu.spl.net.impl.stomp.StompFrame.Command;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * Implementation of the STOMP Messaging Protocol.
@@ -17,11 +27,13 @@ import java.util.concurrent.atomic.AtomicInteger;
  * It processes incoming STOMP frames, manages the client's state (connected/disconnected),
  * and interacts with the {@link Database} and {@link Connections} to route messages.
  */
-public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
+public class StompMessagingProtocolImpl implements StompMessagingProtocol<StompFrame> {
 
     private int connectionId;
-    private Connections<String> connections;
+    private Connections<StompFrame> connections;
     private boolean shouldTerminate = false;
+    // The game state of this server (see GameSummaries), shared by all its clients.
+    private GameSummaries games;
 
     /**
      * Maps topic names to subscription IDs for this specific client.
@@ -45,71 +57,91 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     private String currentUsername = null;
 
     /**
-     * Global message ID counter.
-     * Uses {@link AtomicInteger} to ensure unique IDs across all threads/connections
-     * without needing complex synchronization locks.
+     * Message ID counter for {@link Connections} implementations other than
+     * {@link ConnectionsImpl}, which numbers the messages of each channel by itself.
      */
     private static AtomicInteger messageIdCounter = new AtomicInteger(0);
 
+    /**
+     * Heart-beat intervals the server offers in CONNECTED ({@code heart-beat:<send>,<receive>}),
+     * in milliseconds: how often it can send heart-beats and how often it wants to receive them.
+     * 0 turns that direction off.
+     */
+    private static final long HEARTBEAT_SEND_MILLIS = Long.getLong("stomp.heartbeat.send", 10_000);
+    private static final long HEARTBEAT_RECEIVE_MILLIS = Long.getLong("stomp.heartbeat.receive", 10_000);
+
+    /**
+     * The destination that answers with the server's metrics (see {@link Metrics}), and the
+     * users allowed to subscribe to it ({@code stomp.admin.users}, comma-separated; nobody by
+     * default).
+     */
+    private static final String STATS_DESTINATION = "/admin/stats";
+    private static final Set<String> ADMIN_USERS = Arrays.stream(System.getProperty("stomp.admin.users", "").split(","))
+            .map(String::trim)
+            .filter(name -> !name.isEmpty())
+            .collect(Collectors.toSet());
+
+    // --- Metrics ---
+    // Frames received by command, and the replies this class sends.
+    private static final Metrics.Counter[] FRAMES_IN = new Metrics.Counter[Command.values().length];
+    static {
+        for (Command command : Command.values()) {
+            FRAMES_IN[command.ordinal()] = Metrics.counter("stomp.frames.in." + command.name());
+        }
+    }
+    private static final Metrics.Counter CONNECTED_OUT = Metrics.counter("stomp.frames.out.CONNECTED");
+    private static final Metrics.Counter RECEIPTS_OUT = Metrics.counter("stomp.frames.out.RECEIPT");
+    private static final Metrics.Counter ERRORS_OUT = Metrics.counter("stomp.frames.out.ERROR");
+    private static final Metrics.Counter MESSAGES_OUT = Metrics.counter("stomp.frames.out.MESSAGE");
+
 
     @Override
-    public void start(int connectionId, Connections<String> connections) {
+    public void start(int connectionId, Connections<StompFrame> connections) {
         this.connectionId = connectionId;
         this.connections = connections;
+        this.games = GameSummaries.of(connections);
     }
 
     /**
-     * Processes a raw STOMP message received from the client.
+     * Processes a STOMP frame received from the client.
      * <p>
-     * 1. Parses the frame into headers and body.
+     * 1. The frame was already parsed by {@link StompEncoderDecoder} into command, headers and body.
      * 2. Validates connection state (Client must send CONNECT first).
      * 3. Routes to the specific handler based on the Command (CONNECT, SEND, etc.).
      *
-     * @param msg The raw string message received from the network.
+     * @param frame The frame received from the network.
      */
     @Override
-    public void process(String msg) {
-        // 1. Parsing the frame (Header vs Body)
-        // Split by the first double newline to separate headers from body
-        String[] parts = msg.split("\n\n", 2);
-        String[] headerLines = parts[0].split("\n");
-        String command = headerLines[0].trim();
-
-        Map<String, String> headers = new ConcurrentHashMap<>();
-        for (int i = 1; i < headerLines.length; i++) {
-            String[] pair = headerLines[i].split(":", 2);
-            if (pair.length == 2) {
-                headers.put(pair[0].trim(), pair[1].trim());
-            }
-        }
-        String body = parts.length > 1 ? parts[1] : "";
+    public void process(StompFrame frame) {
+        Command command = frame.command();
+        FRAMES_IN[command.ordinal()].increment();
 
         // 2. Critical State Check
         // If the client is not connected, they are ONLY allowed to send a CONNECT frame.
-        if (!isConnected && !command.equals("CONNECT")) {
-            sendError(headers, "Not Connected", "You must login first using CONNECT command");
+        if (!isConnected && command != Command.CONNECT) {
+            sendError(frame, "Not Connected", "You must login first using CONNECT command");
             return;
         }
 
         // 3. Command Dispatch
         switch (command) {
-            case "CONNECT":
-                handleConnect(headers);
+            case CONNECT:
+                handleConnect(frame);
                 break;
-            case "SEND":
-                handleSend(headers, body);
+            case SEND:
+                handleSend(frame);
                 break;
-            case "SUBSCRIBE":
-                handleSubscribe(headers);
+            case SUBSCRIBE:
+                handleSubscribe(frame);
                 break;
-            case "UNSUBSCRIBE":
-                handleUnsubscribe(headers);
+            case UNSUBSCRIBE:
+                handleUnsubscribe(frame);
                 break;
-            case "DISCONNECT":
-                handleDisconnect(headers);
+            case DISCONNECT:
+                handleDisconnect(frame);
                 break;
             default:
-                sendError(headers, "Malformed frame received", "Undefined command: " + command);
+                sendError(frame, "Malformed frame received", "Undefined command: " + frame.commandName());
                 break;
         }
     }
@@ -119,23 +151,42 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         return shouldTerminate;
     }
 
+    /**
+     * Logs the user out when the connection goes away without a DISCONNECT frame, e.g. after
+     * the end of the stream or missed heart-beats, so the name can be used again.
+     */
+    @Override
+    public void connectionClosed() {
+        if (isConnected) {
+            Database.getInstance().logout(connectionId);
+            isConnected = false;
+        }
+    }
+
     /**
      * Handles the CONNECT frame.
-     * Validates protocol version, host, and credentials against the Database.
+     * Validates protocol version, host, and credentials against the Database, and negotiates
+     * heart-beating if the client sent a {@code heart-beat} header.
      */
-    private void handleConnect(Map<String, String> headers) {
-        String acceptVersion = headers.get("accept-version");
-        String host = headers.get("host");
-        String login = headers.get("login");
-        String passcode = headers.get("passcode");
+    private void handleConnect(StompFrame frame) {
+        String acceptVersion = frame.header("accept-version");
+        String host = frame.header("host");
+        String login = frame.header("login");
+        String passcode = frame.header("passcode");
 
         // Protocol validation
         if (!"1.2".equals(acceptVersion) || !"stomp.cs.bgu.ac.il".equals(host)) {
-            sendError(headers, "Connection failed", "The version must be 1.2 and host stomp.cs.bgu.ac.il");
+            sendError(frame, "Connection failed", "The version must be 1.2 and host stomp.cs.bgu.ac.il");
             return;
         }
         if (login == null || passcode == null) {
-            sendError(headers, "Malformed Frame", "Missing login or passcode");
+            sendError(frame, "Malformed Frame", "Missing login or passcode");
+            return;
+        }
+        String heartBeat = frame.header("heart-beat");
+        long[] clientHeartBeat = heartBeat != null ? parseHeartBeat(heartBeat) : null;
+        if (heartBeat != null && clientHeartBeat == null) {
+            sendError(frame, "Malformed Frame", "Invalid heart-beat header: " + heartBeat);
             return;
         }
 
@@ -145,16 +196,50 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY || status == LoginStatus.ADDED_NEW_USER) {
             isConnected = true;
             currentUsername = login; 
+            CONNECTED_OUT.increment();
             
-            String response = "CONNECTED\nversion:1.2\n\n";
-            connections.send(connectionId, response);
+            if (connections instanceof ConnectionsImpl) {
+                ConnectionsImpl<StompFrame> impl = (ConnectionsImpl<StompFrame>) connections;
+                if (clientHeartBeat == null) {
+                    impl.sendEncoded(connectionId, StompFrames.connected());
+                } else {
+                    impl.sendEncoded(connectionId, StompFrames.connected(HEARTBEAT_SEND_MILLIS, HEARTBEAT_RECEIVE_MILLIS));
+                    // STOMP 1.2: each side uses the larger of what one offers and the other asks for.
+                    long sendEvery = HEARTBEAT_SEND_MILLIS == 0 || clientHeartBeat[1] == 0
+                            ? 0 : Math.max(HEARTBEAT_SEND_MILLIS, clientHeartBeat[1]);
+                    long expectEvery = HEARTBEAT_RECEIVE_MILLIS == 0 || clientHeartBeat[0] == 0
+                            ? 0 : Math.max(HEARTBEAT_RECEIVE_MILLIS, clientHeartBeat[0]);
+                    impl.startHeartbeat(connectionId, sendEvery, expectEvery);
+                }
+            } else {
+                connections.send(connectionId, new StompFrame(Command.CONNECTED, new String[] { "version", "1.2" }, ""));
+            }
 
         } else if (status == LoginStatus.WRONG_PASSWORD) {
-            sendError(headers, "Bad Credentials", "Wrong password");
+            sendError(frame, "Bad Credentials", "Wrong password");
         } else if (status == LoginStatus.ALREADY_LOGGED_IN) {
-            sendError(headers, "User already logged in", "User is already active");
+            sendError(frame, "User already logged in", "User is already active");
         } else if (status == LoginStatus.CLIENT_ALREADY_CONNECTED) {
-            sendError(headers, "Client error", "Client is already connected");
+            sendError(frame, "Client error", "Client is already connected");
+        }
+    }
+
+    /**
+     * Parses a {@code heart-beat:<cx>,<cy>} header value.
+     *
+     * @return {cx, cy} in milliseconds, or {@code null} if the value is malformed
+     */
+    private static long[] parseHeartBeat(String value) {
+        int comma = value.indexOf(',');
+        if (comma < 0) {
+            return null;
+        }
+        try {
+            long cx = Long.parseLong(value.substring(0, comma).trim());
+            long cy = Long.parseLong(value.substring(comma + 1).trim());
+            return cx < 0 || cy < 0 ? null : new long[] { cx, cy };
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
 
@@ -163,56 +248,158 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
      * Publishes a message to a specific topic (destination).
      * Validates that the client is subscribed to the topic before sending.
      */
-    private void handleSend(Map<String, String> headers, String body) {
-        String destination = headers.get("destination");
+    private void handleSend(StompFrame frame) {
+        String destination = frame.header("destination");
         if (destination == null) {
-            sendError(headers, "Did not provide a destination", body);
+            sendError(frame, "Did not provide a destination", frame.bodyAsString());
+            return;
+        }
+
+        // Wildcards are for subscribing; a message always goes to one concrete destination
+        if (DestinationTrie.isPattern(destination)) {
+            sendError(frame, "Invalid destination", "Cannot send to a wildcard destination: " + destination);
             return;
         }
 
         // Verify the user is subscribed to the topic they are writing to
         if (!subscribedTopics.containsKey(destination)) {
-            sendError(headers, "Access Denied", "User is not subscribed to topic " + destination);
+            sendError(frame, "Access Denied", "User is not subscribed to topic " + destination);
+            return;
+        }
+
+        // An admin asking for fresh numbers
+        if (destination.equals(STATS_DESTINATION)) {
+            sendStats(subscribedTopics.get(destination));
+            sendReceipt(frame.header("receipt"));
             return;
         }
 
         // Track file uploads in DB if header exists (Assignment requirement)
-        if (headers.containsKey("filename")) {
-            String filename = headers.get("filename");
+        String filename = frame.header("filename");
+        if (filename != null) {
             Database.getInstance().trackFileUpload(currentUsername, filename, destination);
         }
 
-        // Generate a unique, thread-safe Message ID
-        int messageId = messageIdCounter.incrementAndGet();
+        // Game reports also update the game's running state, for SUBSCRIBE snapshots.
+        GameReport report = games.tracks(destination) ? GameReport.parse(frame.bodyAsString()) : null;
 
-        // J3: Do NOT embed a subscription header here. ConnectionsImpl.send(channel, msg)
-        //     inserts the per-subscriber subscription ID after the "MESSAGE\n" command line,
+        // J3: Do NOT embed a subscription header here. ConnectionsImpl inserts the
+        //     per-subscriber subscription ID after the "MESSAGE\n" command line,
         //     so the body is never scanned for placeholder text.
-        String messageFrame = "MESSAGE\n" +
-                "message-id:" + messageId + "\n" +
-                "destination:" + destination + "\n" +
-                "\n" +
-                body;
-
-        // Send to all subscribers via the Connections interface
-        connections.send(destination, messageFrame);
+        if (connections instanceof ConnectionsImpl) {
+            // Encode the shared part of the MESSAGE frame once, copying the SEND body bytes as-is.
+            // The message-id is the destination's own sequence number, which clients can resume
+            // from with SUBSCRIBE's from-seq header. The report is applied in the same step, so
+            // a snapshot always matches a point of the sequence. A conflate-key header marks a
+            // stat update that a newer one of the same key may replace on a backed-up link.
+            String conflateKey = frame.header("conflate-key");
+            ((ConnectionsImpl<StompFrame>) connections).broadcast(destination, conflateKey, seq -> {
+                if (report != null) {
+                    games.apply(destination, seq, report);
+                }
+                return encodeMessageRemainder(seq, destination, frame);
+            });
+        } else {
+            int messageId = messageIdCounter.incrementAndGet();
+            if (report != null) {
+                games.apply(destination, messageId, report);
+            }
+            connections.send(destination, new StompFrame(Command.MESSAGE,
+                    new String[] { "message-id", String.valueOf(messageId), "destination", destination },
+                    frame.bodyAsString()));
+        }
 
         // Send receipt if requested
-        if (headers.containsKey("receipt")) {
-            connections.send(connectionId, "RECEIPT\nreceipt-id:" + headers.get("receipt") + "\n\n");
-        }
+        sendReceipt(frame.header("receipt"));
+    }
+
+    /**
+     * Builds the part of a MESSAGE frame that follows the command line — its headers, the
+     * body of the SEND frame and the NUL terminator — straight into one byte array.
+     */
+    private static ByteBuffer encodeMessageRemainder(long messageId, String destination, StompFrame send) {
+        byte[] headers = ("message-id:" + messageId + "\n" +
+                "destination:" + destination + "\n" +
+                "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = new byte[headers.length + send.bodyLength() + 1];
+        System.arraycopy(headers, 0, encoded, 0, headers.length);
+        send.copyBody(encoded, headers.length);
+        encoded[encoded.length - 1] = 0;
+        return ByteBuffer.wrap(encoded);
+    }
+
+    /**
+     * Builds the remainder of the MESSAGE frame that answers a {@code snapshot:true} SUBSCRIBE:
+     * the game's state in one body, numbered with the {@code message-id} of the latest report
+     * it includes.
+     */
+    private static ByteBuffer encodeSnapshotRemainder(String destination, GameSummaries.Snapshot snapshot) {
+        return ByteBuffer.wrap(("message-id:" + snapshot.lastSeq + "\n" +
+                "destination:" + destination + "\n" +
+                "snapshot:true\n" +
+                "\n" +
+                snapshot.body + "\u0000").getBytes(StandardCharsets.UTF_8));
     }
 
     /**
      * Handles the SUBSCRIBE frame.
-     * Registers the client to a topic.
+     * Registers the client to a topic. With a {@code from-seq:<n>} header, the messages of the
+     * topic from {@code message-id} n on that the server still holds are sent first (before the
+     * RECEIPT, if one was asked for), so a client that reconnects can pick up where it left off.
+     * The destination may be a wildcard pattern ({@code *} for one segment, a trailing {@code #}
+     * for any number); patterns have no sequence of their own and cannot take {@code from-seq}.
+     * With {@code snapshot:true}, a game destination first sends the game's state so far as a
+     * single MESSAGE (see {@link GameSummaries#snapshot}), then only the reports after it.
      */
-    private void handleSubscribe(Map<String, String> headers) {
-        String destination = headers.get("destination");
-        String id = headers.get("id");
+    private void handleSubscribe(StompFrame frame) {
+        String destination = frame.header("destination");
+        String id = frame.header("id");
 
         if (destination == null || destination.equals("/") || id == null) {
-            sendError(headers, "Missing headers", "Missing destination or id in SUBSCRIBE frame");
+            sendError(frame, "Missing headers", "Missing destination or id in SUBSCRIBE frame");
+            return;
+        }
+
+        if (destination.equals(STATS_DESTINATION)) {
+            if (!ADMIN_USERS.contains(currentUsername)) {
+                sendError(frame, "Access Denied", "Only admins may subscribe to " + STATS_DESTINATION);
+                return;
+            }
+            // Not a topic: nothing is broadcast on it, every SEND to it is answered directly.
+            subscribedTopics.put(destination, id);
+            sendStats(id);
+            sendReceipt(frame.header("receipt"));
+            return;
+        }
+
+        String fromSeqHeader = frame.header("from-seq");
+        long fromSeq = 0;
+        if (fromSeqHeader != null) {
+            try {
+                fromSeq = Long.parseLong(fromSeqHeader.trim());
+            } catch (NumberFormatException e) {
+                fromSeq = -1;
+            }
+            if (fromSeq < 1) {
+                sendError(frame, "Malformed Frame", "Invalid from-seq header: " + fromSeqHeader);
+                return;
+            }
+        }
+
+        if (DestinationTrie.isPattern(destination)) {
+            if (!DestinationTrie.isValidPattern(destination)) {
+                sendError(frame, "Invalid destination", "'#' must be the last segment of " + destination);
+                return;
+            }
+            if (fromSeqHeader != null) {
+                sendError(frame, "Malformed Frame", "from-seq is not supported on wildcard destinations");
+                return;
+            }
+        }
+
+        boolean snapshot = "true".equals(frame.header("snapshot"));
+        if (snapshot && (fromSeqHeader != null || DestinationTrie.isPattern(destination))) {
+            sendError(frame, "Malformed Frame", "snapshot cannot be combined with from-seq or a wildcard destination");
             return;
         }
 
@@ -222,22 +409,27 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         // Global tracking via Connections
         // Cast is necessary because the generic interface doesn't strictly support 'subscribe'
         if (connections instanceof ConnectionsImpl) {
-            ((ConnectionsImpl<String>) connections).subscribe(destination, connectionId, id);
+            if (snapshot) {
+                ((ConnectionsImpl<StompFrame>) connections).subscribe(destination, connectionId, id,
+                        () -> encodeSnapshotRemainder(destination, games.snapshot(destination)));
+            } else if (fromSeqHeader != null) {
+                ((ConnectionsImpl<StompFrame>) connections).subscribe(destination, connectionId, id, fromSeq);
+            } else {
+                ((ConnectionsImpl<StompFrame>) connections).subscribe(destination, connectionId, id);
+            }
         }
 
-        if (headers.containsKey("receipt")) {
-            connections.send(connectionId, "RECEIPT\nreceipt-id:" + headers.get("receipt") + "\n\n");
-        }
+        sendReceipt(frame.header("receipt"));
     }
 
     /**
      * Handles the UNSUBSCRIBE frame.
      * Removes the client from a topic using the Subscription ID.
      */
-    private void handleUnsubscribe(Map<String, String> headers) {
-        String id = headers.get("id");
+    private void handleUnsubscribe(StompFrame frame) {
+        String id = frame.header("id");
         if (id == null) {
-            sendError(headers, "Missing id", "Missing id in UNSUBSCRIBE frame");
+            sendError(frame, "Missing id", "Missing id in UNSUBSCRIBE frame");
             return;
         }
         
@@ -254,36 +446,70 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             subscribedTopics.remove(topicToRemove);
             
             if (connections instanceof ConnectionsImpl) {
-                ((ConnectionsImpl<String>) connections).unsubscribe(topicToRemove, connectionId);
+                ((ConnectionsImpl<StompFrame>) connections).unsubscribe(topicToRemove, connectionId);
             }
             
-            if (headers.containsKey("receipt")) {
-                connections.send(connectionId, "RECEIPT\nreceipt-id:" + headers.get("receipt") + "\n\n");
-            }
+            sendReceipt(frame.header("receipt"));
         } else {
-            sendError(headers, "No subscription found", "No subscription found for id: " + id);
+            sendError(frame, "No subscription found", "No subscription found for id: " + id);
         }
     }
 
     /**
      * Handles the DISCONNECT frame.
      * Performs a graceful shutdown of the connection.
+     * <p>
+     * If a RECEIPT was asked for, the connection is left to the handler, which disconnects it
+     * once the RECEIPT is written (as for ERROR frames); closing it here could drop the RECEIPT
+     * while it is still queued in reactor mode.
      */
-    private void handleDisconnect(Map<String, String> headers) {
-        String receipt = headers.get("receipt");
-        if (receipt != null) {
-            connections.send(connectionId, "RECEIPT\nreceipt-id:" + receipt + "\n\n");
-        }
-        
+    private void handleDisconnect(StompFrame frame) {
         // Update Database state
         if (isConnected) {
             Database.getInstance().logout(connectionId);
         }
         isConnected = false;
-        
-        // Signal termination
+
+        // Signal termination before the RECEIPT is queued, so the handler sees it once it is flushed
         shouldTerminate = true;
-        connections.disconnect(connectionId);
+        String receipt = frame.header("receipt");
+        if (receipt != null) {
+            sendReceipt(receipt);
+        } else {
+            connections.disconnect(connectionId);
+        }
+    }
+
+    /**
+     * Sends the current metrics to this client only, as a MESSAGE of its subscription to
+     * {@link #STATS_DESTINATION}, one {@code name value} line per metric.
+     */
+    private void sendStats(String subscriptionId) {
+        String[] headers = {
+                "subscription", subscriptionId,
+                "message-id", String.valueOf(messageIdCounter.incrementAndGet()),
+                "destination", STATS_DESTINATION,
+                "content-type", "text/plain" };
+        MESSAGES_OUT.increment();
+        connections.send(connectionId, new StompFrame(Command.MESSAGE, headers, Metrics.render()));
+    }
+
+    /**
+     * Sends a RECEIPT frame for the given receipt id, if the client asked for one.
+     * The frame is written from its pre-encoded prefix and suffix (see {@link StompFrames}).
+     *
+     * @param receipt the value of the frame's {@code receipt} header, or {@code null}
+     */
+    private void sendReceipt(String receipt) {
+        if (receipt == null) {
+            return;
+        }
+        RECEIPTS_OUT.increment();
+        if (connections instanceof ConnectionsImpl) {
+            ((ConnectionsImpl<StompFrame>) connections).sendEncoded(connectionId, StompFrames.receipt(receipt));
+        } else {
+            connections.send(connectionId, new StompFrame(Command.RECEIPT, new String[] { "receipt-id", receipt }, ""));
+        }
     }
 
     /**
@@ -295,21 +521,12 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
      * This ensures subscriptions and the activeConnections map are cleaned up
      * without closing the socket before the ERROR frame is written.
      *
-     * @param headers   Headers from the original message (to extract receipt-id if needed).
+     * @param frame     The original frame (to extract receipt-id if needed).
      * @param message   Short error summary.
      * @param extraInfo Detailed error description.
      */
-    private void sendError(Map<String, String> headers, String message, String extraInfo) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("ERROR\n");
-        if (headers.containsKey("receipt")) {
-            sb.append("receipt-id:").append(headers.get("receipt")).append("\n");
-        }
-        sb.append("message:").append(message).append("\n\n");
-        sb.append("The message:\n-----\n");
-        sb.append("Failed: ").append(message).append("\n");
-        sb.append("Info: ").append(extraInfo).append("\n");
-        sb.append("-----\n");
+    private void sendError(StompFrame frame, String message, String extraInfo) {
+        String receipt = frame.header("receipt");
 
         // J2: Log out before marking for termination so that cleanup state is consistent.
         if (isConnected) {
@@ -321,7 +538,22 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
         // Enqueue the ERROR frame.  The handler loop will call connections.disconnect()
         // after this frame is delivered, which removes this connection from all maps.
-        connections.send(connectionId, sb.toString());
+        ERRORS_OUT.increment();
+        if (connections instanceof ConnectionsImpl) {
+            ((ConnectionsImpl<StompFrame>) connections).sendEncoded(connectionId,
+                    StompFrames.error(receipt, message, extraInfo));
+        } else {
+            String[] headers = receipt != null
+                    ? new String[] { "receipt-id", receipt, "message", message }
+                    : new String[] { "message", message };
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("The message:\n-----\n");
+            sb.append("Failed: ").append(message).append("\n");
+            sb.append("Info: ").append(extraInfo).append("\n");
+            sb.append("-----\n");
+            connections.send(connectionId, new StompFrame(Command.ERROR, headers, sb.toString()));
+        }
         shouldTerminate = true;
     }
 }
\ No newline at end of file
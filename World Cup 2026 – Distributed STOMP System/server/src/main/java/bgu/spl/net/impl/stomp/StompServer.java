@@ -1,15 +1,18 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.srv.BufferPool;
+import bgu.spl.net.srv.Metrics;
 import bgu.spl.net.srv.Server;
+import java.nio.file.Paths;
 
 /**
  * The main entry point for the STOMP Server.
  * <p>
  * This class is responsible for:
  * 1. Parsing command-line arguments (port and server mode).
- * 2. registering a shutdown hook to print database statistics upon exit.
+ * 2. registering a shutdown hook to print database statistics and metrics upon exit.
  * 3. Initializing and running the server using the specified concurrency model
- * (Thread-Per-Client or Reactor).
+ * (Thread-Per-Client, Virtual-Thread-Per-Client or Reactor).
  */
 public class StompServer {
 
@@ -18,7 +21,9 @@ public class StompServer {
      *
      * @param args Command line arguments:
      * 1. port - The port number to listen on (e.g., 7777).
-     * 2. server_type - The concurrency strategy: "tpc" (Thread-Per-Client) or "reactor".
+     * 2. server_type - The concurrency strategy: "tpc" (Thread-Per-Client), "vthreads"
+     *    (one virtual thread per client) or "reactor".
+     * 3. loops (optional, reactor only) - Number of selector loops (default 1).
      */
     public static void main(String[] args) {
 
@@ -28,11 +33,23 @@ public class StompServer {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("\nShutting down server... Printing SQL Report:");
             bgu.spl.net.impl.data.Database.getInstance().printReport();
+            System.out.println("Metrics:");
+            System.out.print(Metrics.render());
+            int leaks = BufferPool.reportLeaks(System.out);
+            if (leaks > 0) {
+                System.out.println("Read buffers still leased: " + leaks);
+            }
         }));
+
+        // Periodically dump the metrics to a file, if asked to
+        String metricsFile = System.getProperty("stomp.metrics.file");
+        if (metricsFile != null) {
+            Metrics.startDump(Paths.get(metricsFile), Long.getLong("stomp.metrics.intervalMillis", 10_000));
+        }
         
         // Validate arguments
         if (args.length < 2) {
-            System.out.println("Usage: StompServer <port> <server_type(tpc/reactor)>");
+            System.out.println("Usage: StompServer <port> <server_type(tpc/vthreads/reactor)> [reactor_loops]");
             System.exit(1);
         }
 
@@ -57,11 +74,32 @@ public class StompServer {
                 () -> new StompEncoderDecoder()         // Encoder/Decoder Factory
             ).serve();
 
+        } else if (serverType.equals("vthreads")) {
+            // Virtual-Thread-Per-Client Strategy:
+            // The same blocking code path as tpc, but every connection runs on a cheap
+            // virtual thread, so idle subscribers do not each hold a platform thread.
+            Server.virtualThreadPerClient(
+                port,
+                () -> new StompMessagingProtocolImpl(), // Protocol Factory
+                () -> new StompEncoderDecoder()         // Encoder/Decoder Factory
+            ).serve();
+
         } else if (serverType.equals("reactor")) {
             // Reactor Strategy:
-            // Uses non-blocking I/O with a fixed pool of threads (based on CPU cores).
+            // Uses non-blocking I/O with a fixed pool of threads (based on CPU cores)
+            // and one or more selector loops sharing the accepted sockets.
+            int loops = 1;
+            if (args.length > 2) {
+                try {
+                    loops = Integer.parseInt(args[2]);
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid number of reactor loops: " + args[2]);
+                    System.exit(1);
+                }
+            }
             Server.reactor(
                 Runtime.getRuntime().availableProcessors(),
+                loops,
                 port, 
                 () -> new StompMessagingProtocolImpl(), // Protocol Factory
                 () -> new StompEncoderDecoder()         // Encoder/Decoder Factory
@@ -70,7 +108,7 @@ public class StompServer {
         } else {
             // Invalid server type
             System.out.println("Unknown server type: " + serverType);
-            System.out.println("Usage: StompServer <port> <server_type(tpc/reactor)>");
+            System.out.println("Usage: StompServer <port> <server_type(tpc/vthreads/reactor)> [reactor_loops]");
             System.exit(1);
         }
     }
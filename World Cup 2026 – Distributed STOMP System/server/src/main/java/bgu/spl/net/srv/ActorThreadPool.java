@@ -1,79 +1,90 @@
 package bgu.spl.net.srv;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * A thread pool that runs the tasks of each actor one at a time and in submission order,
+ * while different actors run in parallel.
+ * <p>
+ * Every actor owns a {@link Mailbox}: a lock-free multi-producer queue plus an atomic
+ * "scheduled" flag. Submitting a task only appends it to the mailbox and, if the flag was
+ * clear, hands the mailbox to a worker. There is no global actor map and no global lock,
+ * so nothing has to be cleaned up when an actor goes idle or disappears.
+ */
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
-    private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
+    /** Upper bound of tasks a worker runs for one actor before yielding the thread to others. */
+    private static final int MAX_TASKS_PER_TURN = 16;
+
+    /** Tasks submitted and not started yet, over all the pools of the JVM. */
+    private static final Metrics.Counter QUEUED_TASKS = Metrics.counter("actors.queued.tasks");
+
+    /**
+     * The pending tasks of a single actor.
+     * <p>
+     * Many threads may add to it; only the worker currently holding the {@code scheduled}
+     * flag takes tasks out of it.
+     */
+    public static final class Mailbox {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    }
+
     private final ExecutorService threads;
 
     public ActorThreadPool(int threads) {
         this.threads = Executors.newFixedThreadPool(threads);
-        // L5: WeakHashMap caused actors to be silently garbage-collected while they still
-        //     had pending tasks in the queue, dropping those tasks.  HashMap keeps strong
-        //     references for the lifetime of the actor's processing session.
-        acts = new HashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
-        actsRWLock = new ReentrantReadWriteLock();
     }
 
-    public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
-            }
-        }
+    /**
+     * Runs the actors on an existing executor, e.g. {@link java.util.concurrent.ForkJoinPool#commonPool()}.
+     * The pool then does not own the threads: {@link #shutdown()} is only meaningful if the
+     * executor may be shut down.
+     */
+    public ActorThreadPool(ExecutorService threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Queues a task for an actor. The task runs after all the tasks previously submitted to
+     * the same mailbox, and never concurrently with them.
+     *
+     * @param actor the actor's mailbox
+     * @param r     the task
+     */
+    public void submit(Mailbox actor, Runnable r) {
+        QUEUED_TASKS.increment();
+        actor.tasks.add(r);
+        schedule(actor);
     }
 
     public void shutdown() {
         threads.shutdownNow();
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
-
-        actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
-        actsRWLock.readLock().unlock();
-
-        if (pendingRunnables == null) {
-            actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
-            actsRWLock.writeLock().unlock();
+    private void schedule(Mailbox actor) {
+        if (actor.scheduled.compareAndSet(false, true)) {
+            threads.execute(() -> drain(actor));
         }
-        return pendingRunnables;
     }
 
-    private void execute(Runnable r, Object act) {
-        threads.execute(() -> {
-            try {
+    private void drain(Mailbox actor) {
+        try {
+            Runnable r;
+            for (int i = 0; i < MAX_TASKS_PER_TURN && (r = actor.tasks.poll()) != null; i++) {
+                QUEUED_TASKS.decrement();
                 r.run();
-            } finally {
-                complete(act);
             }
-        });
-    }
-
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
+        } finally {
+            actor.scheduled.set(false);
+            // Race guard: a task may have been added after our last poll() but before the flag
+            // was cleared; its submitter saw the flag set and did not schedule the actor.
+            if (!actor.tasks.isEmpty()) {
+                schedule(actor);
             }
         }
     }
@@ -21,21 +21,39 @@ public abstract class BaseServer<T> implements Server<T> {
     private final int port;
     private final Supplier<StompMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
+    private final ConnectionsImpl<T> connections;
     private ServerSocket sock;
 
+    /**
+     * Constructor. The server gets a Connections instance of its own.
+     *
+     * @param port            The port number to listen on.
+     * @param protocolFactory A factory to create a new protocol instance for each client.
+     * @param encdecFactory   A factory to create a new encoder/decoder instance for each client.
+     */
+    public BaseServer(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory) {
+        this(port, new ConnectionsImpl<>(), protocolFactory, encdecFactory);
+    }
+
     /**
      * Constructor.
      *
      * @param port            The port number to listen on.
+     * @param connections     The Connections the clients of this server are registered with.
      * @param protocolFactory A factory to create a new protocol instance for each client.
      * @param encdecFactory   A factory to create a new encoder/decoder instance for each client.
      */
     public BaseServer(
             int port,
+            ConnectionsImpl<T> connections,
             Supplier<StompMessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> encdecFactory) {
 
         this.port = port;
+        this.connections = connections;
         this.protocolFactory = protocolFactory;
         this.encdecFactory = encdecFactory;
         this.sock = null;
@@ -66,13 +84,14 @@ public abstract class BaseServer<T> implements Server<T> {
                 MessageEncoderDecoder<T> encdec = encdecFactory.get();
 
                 // Create the Handler.
-                // Note: The Handler's constructor automatically registers itself with the 
-                // global Connections interface and initializes the protocol. 
+                // Note: The Handler's constructor automatically registers itself with the
+                // server's Connections and initializes the protocol.
                 // No further setup is required here.
                 BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
                         clientSock,
                         encdec,
-                        protocol);
+                        protocol,
+                        connections);
 
                 // Execute the handler according to the specific concurrency strategy
                 // (e.g., spawn a new thread in Thread-Per-Client mode)
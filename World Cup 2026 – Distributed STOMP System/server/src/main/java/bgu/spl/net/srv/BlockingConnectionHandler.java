@@ -7,6 +7,10 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Handles a single client connection using Blocking I/O.
@@ -22,30 +26,56 @@ import java.net.Socket;
  */
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    /** Size of the chunks read from the socket and handed to the decoder in bulk. */
+    private static final int READ_CHUNK_SIZE = 1 << 13; // 8k
+
+    /** A server heart-beat: a single EOL. */
+    private static final ByteBuffer HEARTBEAT = ByteBuffer.wrap(new byte[] { '\n' }).asReadOnlyBuffer();
+
+    // Shared with the reactor's handlers.
+    private static final Metrics.Counter BYTES_READ = Metrics.counter("net.bytes.read");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("net.bytes.written");
+
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
     private BufferedInputStream in;
     private BufferedOutputStream out;
+    // Guards 'out' so frames from different threads are never interleaved. A ReentrantLock rather
+    // than synchronized: a virtual thread blocked in a socket write under it does not pin its carrier.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Staging area for copying read-only broadcast buffers into 'out'; only used under writeLock.
+    private final byte[] writeChunk = new byte[READ_CHUNK_SIZE];
     private volatile boolean connected = true;
     // J5: stored so run() can call connections.disconnect() for cleanup on exit.
     private int connectionId = -1;
+    private final ConnectionsImpl<T> connections;
+
+    // Heart-beat state. Without a selector to wake us, the read itself times out (SO_TIMEOUT)
+    // often enough to check both directions; see startHeartbeat().
+    private volatile long sendEveryNanos = 0;
+    private volatile long readTimeoutNanos = 0;
+    private long lastReadNanos = System.nanoTime(); // only the reading thread touches it
+    private volatile long lastWriteNanos = System.nanoTime();
 
     /**
      * Constructor.
-     * Initializes the I/O streams and registers this handler with the global Connections service.
+     * Initializes the I/O streams and registers this handler with the server's Connections.
      *
-     * @param sock     The client socket.
-     * @param reader   The encoder/decoder for this client.
-     * @param protocol The protocol instance for this client.
+     * @param sock        The client socket.
+     * @param reader      The encoder/decoder for this client.
+     * @param protocol    The protocol instance for this client.
+     * @param connections The Connections of the server that accepted the client.
      */
-    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol) {
+    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol,
+                                     ConnectionsImpl<T> connections) {
         this.sock = sock;
         this.encdec = reader;
         this.protocol = protocol;
+        this.connections = connections;
 
         // --- Critical Initialization Order ---
-        // We initialize the I/O streams *before* registering the handler with the global Connections map.
+        // We initialize the I/O streams *before* registering the handler with the Connections map.
         // This prevents a potential race condition where a broadcast message (e.g., from another client)
         // attempts to write to this handler's 'out' stream before it is fully instantiated.
         try {
@@ -56,10 +86,7 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
             connected = false;
         }
 
-        // Once streams are ready, register to the Connections singleton
-        ConnectionsImpl<T> connections = ConnectionsImpl.getInstance();
-
-        // Add to active handlers map and get a unique Connection ID
+        // Once streams are ready, add to active handlers map and get a unique Connection ID
         this.connectionId = connections.addActiveHandler(this);
 
         // Start the protocol with the assigned ID
@@ -68,21 +95,46 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
     /**
      * The main read-loop.
-     * Continuously reads bytes from the socket, decodes them, and processes complete messages.
+     * Continuously reads chunks of bytes from the socket, decodes them in bulk, and processes complete messages.
      * J5: After the loop exits (graceful disconnect, error, or EOF) we call
      *     connections.disconnect() to remove this connection from the active-connections map
      *     and all channel subscription lists, preventing resource leaks.
+     * With heart-beating on, a read that times out is the cue to send a heart-beat or to give
+     * up on a peer that has been silent for too long.
      */
     @Override
     public void run() {
         try (Socket sock = this.sock) { // Try-with-resources ensures socket closes on exit
             int read;
+            byte[] chunk = new byte[READ_CHUNK_SIZE];
+            ByteBuffer view = ByteBuffer.wrap(chunk);
+            // Frames that follow a terminating one (e.g. after DISCONNECT) in the same chunk are dropped.
+            Consumer<T> process = msg -> {
+                if (!protocol.shouldTerminate()) {
+                    protocol.process(msg);
+                }
+            };
 
             // Note: 'in' and 'out' are already initialized in the constructor.
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
-                    protocol.process(nextMessage);
+            while (!protocol.shouldTerminate() && connected) {
+                try {
+                    read = in.read(chunk);
+                } catch (SocketTimeoutException idle) {
+                    if (!checkHeartbeat()) {
+                        break; // The peer missed its heart-beats
+                    }
+                    continue;
+                }
+                if (read < 0) {
+                    break;
+                }
+                lastReadNanos = System.nanoTime();
+                BYTES_READ.add(read);
+                view.clear();
+                view.limit(read);
+                encdec.decode(view, process);
+                if (sendEveryNanos > 0) {
+                    checkHeartbeat();
                 }
             }
 
@@ -92,8 +144,45 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
             // J5: ensure cleanup even when shouldTerminate was set by sendError().
             // disconnect() is idempotent — if handleDisconnect() already called it, the
             // handler entry will be null and the method returns immediately.
-            ConnectionsImpl<T> connections = ConnectionsImpl.getInstance();
             connections.disconnect(connectionId);
+            protocol.connectionClosed();
+        }
+    }
+
+    /**
+     * Sends a heart-beat if nothing has been written for the negotiated interval.
+     *
+     * @return false if the peer has not sent anything for too long and must be dropped
+     */
+    private boolean checkHeartbeat() {
+        long now = System.nanoTime();
+        if (readTimeoutNanos > 0 && now - lastReadNanos >= readTimeoutNanos) {
+            return false;
+        }
+        if (sendEveryNanos > 0 && now - lastWriteNanos >= sendEveryNanos) {
+            sendEncoded(HEARTBEAT.duplicate());
+        }
+        return true;
+    }
+
+    /**
+     * Turns heart-beating on. The socket read times out at half the shorter interval, so a
+     * heart-beat is never more than that late and a dead peer is noticed soon after its window.
+     * Called by the protocol, i.e. on this connection's reading thread.
+     */
+    @Override
+    public void startHeartbeat(long sendEveryMillis, long expectEveryMillis) {
+        if (sendEveryMillis <= 0 && expectEveryMillis <= 0) {
+            return;
+        }
+        sendEveryNanos = sendEveryMillis * 1_000_000L;
+        readTimeoutNanos = expectEveryMillis * 2_000_000L;
+        long shortest = Math.min(sendEveryMillis > 0 ? sendEveryMillis : Long.MAX_VALUE,
+                expectEveryMillis > 0 ? expectEveryMillis * 2 : Long.MAX_VALUE);
+        try {
+            sock.setSoTimeout((int) Math.max(1, Math.min(shortest / 2, Integer.MAX_VALUE)));
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -106,7 +195,7 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     /**
      * Sends a message to the client.
      * <p>
-     * This method is thread-safe. It synchronizes on the output stream to ensure
+     * This method is thread-safe. It holds the write lock of the output stream to ensure
      * that multiple threads (e.g., the handler's read-loop vs. a broadcast from another thread)
      * do not corrupt the data stream.
      *
@@ -118,10 +207,15 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
             try {
                 // Safety check: ensure 'out' was initialized successfully
                 if (out != null) {
-                    synchronized (out) {
-                        byte[] encodedMsg = encdec.encode(msg);
+                    byte[] encodedMsg = encdec.encode(msg);
+                    writeLock.lock();
+                    try {
                         out.write(encodedMsg);
                         out.flush();
+                        BYTES_WRITTEN.add(encodedMsg.length);
+                        lastWriteNanos = System.nanoTime();
+                    } finally {
+                        writeLock.unlock();
                     }
                 }
             } catch (IOException e) {
@@ -129,4 +223,70 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
             }   
         }
     }
+
+    /**
+     * Sends a pre-encoded broadcast frame to the client.
+     * <p>
+     * Like {@link #send(Object)}, the whole frame is written while holding the write lock of
+     * the output stream, so it can never be interleaved with another frame.
+     *
+     * @param header     The per-subscriber header bytes.
+     * @param sharedBody This connection's own view of the shared encoded body.
+     */
+    @Override
+    public void sendShared(ByteBuffer header, ByteBuffer sharedBody) {
+        try {
+            if (out != null) {
+                writeLock.lock();
+                try {
+                    write(header);
+                    write(sharedBody);
+                    out.flush();
+                    lastWriteNanos = System.nanoTime();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a frame that is already encoded in parts, under the write lock like
+     * {@link #sendShared(ByteBuffer, ByteBuffer)}.
+     *
+     * @param parts The encoded frame, in order.
+     */
+    @Override
+    public void sendEncoded(ByteBuffer... parts) {
+        try {
+            if (out != null) {
+                writeLock.lock();
+                try {
+                    for (ByteBuffer part : parts) {
+                        write(part);
+                    }
+                    out.flush();
+                    lastWriteNanos = System.nanoTime();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Copies a (possibly read-only) buffer into the output stream. Must hold {@link #writeLock}.
+     */
+    private void write(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = Math.min(buf.remaining(), writeChunk.length);
+            buf.get(writeChunk, 0, n);
+            out.write(writeChunk, 0, n);
+            BYTES_WRITTEN.add(n);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+package bgu.spl.net.srv;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, size-classed pool of direct {@link ByteBuffer}s.
+ * <p>
+ * Buffers come in power-of-two size classes from 1 KB to 64 KB, so a tiny DISCONNECT frame and a
+ * large report body each get a buffer of about the right size. Released buffers are kept in a
+ * shared lock-free queue per class. There is no per-thread cache: the reactor leases its read
+ * buffers on the loop threads but releases them on the worker threads that decode them, so a
+ * thread's cache would only fill on threads that never lease. The total number of idle bytes is
+ * capped by {@code stomp.buffers.maxPooledBytes}; buffers released beyond it are simply dropped
+ * and their memory returns to the OS once they are collected, so a burst does not keep off-heap
+ * memory pinned forever.
+ * <p>
+ * With {@code -Dstomp.buffers.trackLeaks=true} every lease records where it happened; buffers that
+ * are never released can then be listed with {@link #reportLeaks(PrintStream)}, and releasing a
+ * buffer twice is reported immediately.
+ */
+public final class BufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 10; // 1k
+    private static final int MAX_CLASS_SHIFT = 16; // 64k
+    private static final int CLASS_COUNT = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+    /** Smallest and largest buffer sizes handed out by the pool. */
+    public static final int MIN_SIZE = 1 << MIN_CLASS_SHIFT;
+    public static final int MAX_SIZE = 1 << MAX_CLASS_SHIFT;
+
+    private static final long MAX_POOLED_BYTES = Long.getLong("stomp.buffers.maxPooledBytes", 16L << 20); // 16M
+    private static final boolean TRACK_LEAKS = Boolean.getBoolean("stomp.buffers.trackLeaks");
+
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] SHARED = newQueues(CLASS_COUNT);
+
+    // --- Metrics ---
+    // Bytes in buffers leased out, and direct memory allocated by the pool since startup.
+    private static final Metrics.Counter LEASED_BYTES = Metrics.counter("buffers.leased.bytes");
+    private static final Metrics.Counter ALLOCATED_BYTES = Metrics.counter("buffers.allocated.bytes");
+    // Bytes in idle buffers kept by the pool; also enforces the cap.
+    private static final AtomicLong POOLED_BYTES = new AtomicLong();
+    static {
+        Metrics.gauge("buffers.pooled.bytes", POOLED_BYTES::get);
+    }
+
+    // Debug only: lease site of every buffer that is currently out.
+    private static final Map<ByteBuffer, Throwable> LEASES =
+            TRACK_LEAKS ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+
+    private BufferPool() {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedQueue<ByteBuffer>[] newQueues(int count) {
+        ConcurrentLinkedQueue<ByteBuffer>[] queues =
+                (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[count];
+        for (int i = 0; i < count; i++) {
+            queues[i] = new ConcurrentLinkedQueue<>();
+        }
+        return queues;
+    }
+
+    /**
+     * Leases a cleared direct buffer of {@code minCapacity} bytes rounded up to its size class.
+     * Requests above {@link #MAX_SIZE} get a buffer of {@link #MAX_SIZE} bytes.
+     * Every lease must be paired with exactly one {@link #release(ByteBuffer)}.
+     */
+    public static ByteBuffer lease(int minCapacity) {
+        int sizeClass = sizeClass(minCapacity);
+        ByteBuffer buf = SHARED[sizeClass].poll();
+        if (buf != null) {
+            POOLED_BYTES.addAndGet(-buf.capacity());
+            buf.clear();
+        } else {
+            buf = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_CLASS_SHIFT));
+            ALLOCATED_BYTES.add(buf.capacity());
+        }
+        LEASED_BYTES.add(buf.capacity());
+        if (TRACK_LEAKS) {
+            LEASES.put(buf, new Throwable("Buffer of " + buf.capacity() + " bytes leased here"));
+        }
+        return buf;
+    }
+
+    /**
+     * Returns a leased buffer to the pool. The caller must not touch it afterwards.
+     */
+    public static void release(ByteBuffer buf) {
+        if (TRACK_LEAKS && LEASES.remove(buf) == null) {
+            new Throwable("Buffer released twice, or not leased from the pool").printStackTrace();
+            return;
+        }
+        LEASED_BYTES.add(-buf.capacity());
+        int sizeClass = Integer.numberOfTrailingZeros(buf.capacity()) - MIN_CLASS_SHIFT;
+
+        // Reserve room under the cap first; if there is none, drop the buffer.
+        if (POOLED_BYTES.addAndGet(buf.capacity()) > MAX_POOLED_BYTES) {
+            POOLED_BYTES.addAndGet(-buf.capacity());
+            return;
+        }
+        SHARED[sizeClass].add(buf);
+    }
+
+    /**
+     * @return the size class index of the smallest class that holds {@code capacity} bytes
+     */
+    private static int sizeClass(int capacity) {
+        if (capacity <= MIN_SIZE) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1); // ceil(log2(capacity))
+        return Math.min(shift, MAX_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * Prints the lease site of every buffer that is currently out. Only available with
+     * {@code -Dstomp.buffers.trackLeaks=true}.
+     *
+     * @return the number of outstanding leases, or -1 if leak tracking is off
+     */
+    public static int reportLeaks(PrintStream out) {
+        if (!TRACK_LEAKS) {
+            return -1;
+        }
+        List<Throwable> sites;
+        synchronized (LEASES) {
+            sites = new ArrayList<>(LEASES.values());
+        }
+        for (Throwable site : sites) {
+            site.printStackTrace(out);
+        }
+        return sites.size();
+    }
+}
@@ -0,0 +1,148 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The message sequence of one channel and a bounded replay ring of its most recent frames.
+ * <p>
+ * Every frame broadcast on the channel gets the next sequence number (starting at 1) and its
+ * encoded remainder is copied into a fixed-size direct buffer, used as a circular log. An index
+ * of {@code frames} slots maps a sequence number to the offset and length of its bytes. When
+ * either the bytes or the index slots run out, the oldest frames are overwritten, so the ring
+ * always holds an unbroken run of the latest sequence numbers. A client that reconnects can
+ * then be sent what it missed straight from memory.
+ * <p>
+ * Not thread-safe: {@link ConnectionsImpl} calls it while holding the log's monitor, which is
+ * also what orders the sequence numbers of concurrent broadcasts. The ring is only allocated
+ * on the first recorded frame; a log created with zero capacity only numbers frames.
+ * <p>
+ * A log without a ring holds nothing worth keeping once its channel has no subscribers, so
+ * {@link ConnectionsImpl} then drops it from its map and marks it {@link #retired}; a thread
+ * that finds the mark after taking the monitor looks the channel up again.
+ */
+final class ChannelLog {
+
+    private final int capacity;
+    private final int[] offsets;
+    private final int[] lengths;
+    private ByteBuffer data; // direct, allocated lazily
+
+    // The ring holds the frames numbered [firstSeq, lastSeq].
+    private long firstSeq = 1;
+    private long lastSeq = 0;
+    // Where the next frame goes.
+    private int tail = 0;
+
+    // Set under the monitor once the log is no longer in its channel's map.
+    boolean retired = false;
+
+    /**
+     * @param capacity bytes of frame data to keep, 0 for no replay
+     * @param frames   the most frames to keep, 0 for no replay
+     */
+    ChannelLog(int capacity, int frames) {
+        boolean replay = capacity > 0 && frames > 0;
+        this.capacity = replay ? capacity : 0;
+        this.offsets = new int[replay ? frames : 0];
+        this.lengths = new int[replay ? frames : 0];
+    }
+
+    /**
+     * @return false if the log only numbers frames (it was created with zero capacity)
+     */
+    boolean replays() {
+        return capacity > 0;
+    }
+
+    /**
+     * @return the sequence number of the next frame of the channel
+     */
+    long nextSeq() {
+        return lastSeq + 1;
+    }
+
+    /**
+     * Records the frame numbered {@link #nextSeq()}, evicting the oldest ones if needed.
+     * The frame's position is not changed.
+     *
+     * @param frame the encoded frame remainder, as broadcast to the subscribers
+     */
+    void record(ByteBuffer frame) {
+        long seq = ++lastSeq;
+        int length = frame.remaining();
+        if (length > capacity) {
+            // Does not fit at all: forget everything so the ring never has a hole.
+            firstSeq = seq + 1;
+            tail = 0;
+            return;
+        }
+        if (data == null) {
+            data = ByteBuffer.allocateDirect(capacity);
+        }
+        if (seq - firstSeq == offsets.length) {
+            firstSeq++; // Out of index slots
+        }
+        int offset = reserve(length);
+        data.put(offset, frame, frame.position(), length);
+        int slot = slot(seq);
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        tail = offset + length;
+    }
+
+    /**
+     * Finds room for {@code length} bytes after the newest frame, evicting the oldest frames
+     * until there is some.
+     *
+     * @return the offset to write at
+     */
+    private int reserve(int length) {
+        while (true) {
+            if (firstSeq == lastSeq) { // Only the frame being recorded: the ring is empty
+                return 0;
+            }
+            int head = offsets[slot(firstSeq)];
+            if (head < tail) {
+                // Not wrapped: the frames lie in [head, tail)
+                if (capacity - tail >= length) {
+                    return tail;
+                }
+                if (head >= length) {
+                    return 0;
+                }
+            } else if (head - tail >= length) {
+                // Wrapped: the frames lie in [head, end) and [0, tail)
+                return tail;
+            }
+            firstSeq++;
+        }
+    }
+
+    /**
+     * Copies the recorded frames numbered {@code fromSeq} and later, oldest first. Frames older
+     * than the ring are gone; the copy then starts at the oldest one still kept.
+     *
+     * @return heap copies of the frames, which stay valid after the ring moves on
+     */
+    List<ByteBuffer> copyFrom(long fromSeq) {
+        long from = Math.max(fromSeq, firstSeq);
+        if (data == null || from > lastSeq) {
+            return Collections.emptyList();
+        }
+        List<ByteBuffer> frames = new ArrayList<>((int) (lastSeq - from + 1));
+        for (long seq = from; seq <= lastSeq; seq++) {
+            int slot = slot(seq);
+            byte[] copy = new byte[lengths[slot]];
+            data.get(offsets[slot], copy);
+            frames.add(ByteBuffer.wrap(copy).asReadOnlyBuffer());
+        }
+        return frames;
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % offsets.length);
+    }
+}
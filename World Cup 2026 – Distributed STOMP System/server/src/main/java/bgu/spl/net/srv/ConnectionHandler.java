@@ -6,6 +6,7 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +20,48 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Sends an already encoded frame made of a small per-connection header and a body that is
+     * shared, read-only, between all the receivers of a broadcast.
+     * Implementations must not modify the content of either buffer, only their positions.
+     *
+     * @param header the per-connection part of the frame, written first
+     * @param sharedBody a private {@code duplicate()} of the shared, encoded frame remainder
+     */
+    void sendShared(ByteBuffer header, ByteBuffer sharedBody);
+
+    /**
+     * Sends a broadcast frame like {@link #sendShared}, which a later frame with the same
+     * conflation key may replace as long as it has not started going out: a subscriber that is
+     * behind then only gets the latest value of each key. Implementations that write frames
+     * straight away have nothing to replace and simply send it.
+     *
+     * @param header     the per-connection part of the frame, written first
+     * @param sharedBody a private {@code duplicate()} of the shared, encoded frame remainder
+     * @param key        identifies what the frame updates (compared with {@code equals})
+     */
+    default void sendConflatable(ByteBuffer header, ByteBuffer sharedBody, Object key) {
+        sendShared(header, sharedBody);
+    }
+
+    /**
+     * Sends one already encoded frame, given as consecutive parts (e.g. a constant prefix shared
+     * by all connections followed by a small variable part). The parts are written in order and
+     * never interleaved with another frame. Implementations must not modify their content.
+     *
+     * @param parts the encoded frame, terminating NUL included; each buffer is used by this call only
+     */
+    void sendEncoded(ByteBuffer... parts);
+
+    /**
+     * Starts heart-beating on this connection, with the intervals negotiated by the protocol.
+     * When nothing has been sent for {@code sendEveryMillis} a single EOL is sent; when nothing
+     * has been received for twice {@code expectEveryMillis} the peer is considered dead and the
+     * connection is disconnected. A zero interval disables that direction.
+     *
+     * @param sendEveryMillis   how often the server must show it is alive, 0 for never
+     * @param expectEveryMillis how often the client promised to show it is alive, 0 for never
+     */
+    void startHeartbeat(long sendEveryMillis, long expectEveryMillis);
+
 }
@@ -0,0 +1,150 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent table from connection id to handler, indexed directly by the id.
+ * <p>
+ * Connection ids come from an increasing counter, so the id space is dense: the table is a
+ * directory of fixed-size segments and a lookup is two array reads, with no boxing and no
+ * hashing. Ids are never handed out twice (a recycled id could receive a late message or
+ * logout meant for the previous client); instead, a segment whose ids have all been issued and
+ * all been removed again is dropped from the directory, so memory follows the number of live
+ * connections rather than the number ever made.
+ * <p>
+ * The counter is shared by every table in the JVM, so the servers of one process never hand out
+ * the same id: the user registry in {@code Database} is process-wide and knows a logged-in
+ * client by its connection id alone. A table then sees gaps in its ids where another server
+ * took them, which only leaves its segments less full.
+ * <p>
+ * Lookups and slot updates are lock-free. Installing and dropping segments, which happens
+ * once per {@code SEGMENT_SIZE} connections, takes the table's monitor.
+ *
+ * @param <H> The type of the stored handler.
+ */
+final class ConnectionTable<H> {
+
+    private static final int SEGMENT_BITS = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS; // 1024 ids per segment
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private static final class Segment<H> {
+        final AtomicReferenceArray<H> slots = new AtomicReferenceArray<>(SEGMENT_SIZE);
+        final AtomicInteger live = new AtomicInteger();
+    }
+
+    // Last id handed out by add() of any table; ids start at 1.
+    private static final AtomicInteger LAST_ID = new AtomicInteger(0);
+    private volatile AtomicReferenceArray<Segment<H>> directory = new AtomicReferenceArray<>(16);
+
+    /**
+     * Stores a handler under a fresh id.
+     *
+     * @return the new connection id
+     */
+    int add(H handler) {
+        int id = LAST_ID.incrementAndGet();
+        put(id, handler);
+        return id;
+    }
+
+    /**
+     * @return the handler stored under the id, or {@code null}
+     */
+    H get(int id) {
+        Segment<H> segment = segment(id);
+        return segment == null ? null : segment.slots.get(id & SEGMENT_MASK);
+    }
+
+    boolean contains(int id) {
+        return get(id) != null;
+    }
+
+    /**
+     * Stores a handler under an explicit id, replacing any previous one.
+     * Meant for ids issued by {@link #add} (and tests): putting into an id range that has
+     * already been fully released races with that range being dropped.
+     */
+    void put(int id, H handler) {
+        if (id < 0) {
+            throw new IllegalArgumentException("negative connection id: " + id);
+        }
+        while (true) {
+            Segment<H> segment = segment(id);
+            if (segment == null) {
+                segment = installSegment(id >>> SEGMENT_BITS);
+            }
+            if (segment.slots.getAndSet(id & SEGMENT_MASK, handler) == null) {
+                segment.live.incrementAndGet();
+            }
+            // The segment may have been dropped between the lookup and the increment; once
+            // live is non-zero it cannot be dropped any more, so one re-check is enough.
+            if (segment(id) == segment) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the handler stored under the id.
+     *
+     * @return the removed handler, or {@code null} if there was none (only one of several
+     *         concurrent callers gets it)
+     */
+    H remove(int id) {
+        Segment<H> segment = segment(id);
+        if (segment == null) {
+            return null;
+        }
+        H removed = segment.slots.getAndSet(id & SEGMENT_MASK, null);
+        if (removed != null && segment.live.decrementAndGet() == 0) {
+            dropIfReleased(id >>> SEGMENT_BITS, segment);
+        }
+        return removed;
+    }
+
+    private Segment<H> segment(int id) {
+        if (id < 0) {
+            return null;
+        }
+        int index = id >>> SEGMENT_BITS;
+        AtomicReferenceArray<Segment<H>> dir = directory;
+        return index < dir.length() ? dir.get(index) : null;
+    }
+
+    private synchronized Segment<H> installSegment(int index) {
+        AtomicReferenceArray<Segment<H>> dir = directory;
+        if (index >= dir.length()) {
+            int length = dir.length();
+            while (length <= index) {
+                length *= 2;
+            }
+            AtomicReferenceArray<Segment<H>> grown = new AtomicReferenceArray<>(length);
+            for (int i = 0; i < dir.length(); i++) {
+                grown.set(i, dir.get(i));
+            }
+            directory = dir = grown;
+        }
+        Segment<H> segment = dir.get(index);
+        if (segment == null) {
+            segment = new Segment<>();
+            dir.set(index, segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Drops an empty segment once every id in its range has been issued (by any table), since
+     * none of them can be used again.
+     */
+    private synchronized void dropIfReleased(int index, Segment<H> segment) {
+        long lastIdOfSegment = ((long) index << SEGMENT_BITS) + SEGMENT_MASK;
+        if (segment.live.get() == 0 && lastIdOfSegment <= LAST_ID.get()) {
+            AtomicReferenceArray<Segment<H>> dir = directory;
+            if (index < dir.length() && dir.get(index) == segment) {
+                dir.set(index, null);
+            }
+        }
+    }
+}
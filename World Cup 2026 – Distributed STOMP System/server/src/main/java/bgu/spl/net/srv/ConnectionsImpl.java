@@ -1,60 +1,167 @@
 package bgu.spl.net.srv;
 
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
 
 /**
  * Implementation of the Connections interface.
  * <p>
  * This class holds the state of all active connections and manages the broadcasting of messages.
- * It is implemented as a thread-safe Singleton to ensure all threads (TPC or Reactor) share the same state.
+ * It is thread-safe and shared by all the threads (TPC or Reactor) of one server. Every server
+ * gets its own instance (see the {@link Server} factories), so several independent servers can
+ * run in one JVM without sharing any locks. Connection ids are still unique across the JVM (see
+ * {@link ConnectionTable}), since the user registry of {@code Database} is shared.
  *
  * @param <T> The type of message (e.g., String).
  */
 public class ConnectionsImpl<T> implements Connections<T> {
 
-    // --- Singleton Pattern (Thread Safe) ---
-    // J6: Use the concrete type parameter so callers don't need an unchecked cast.
-    private static class ConnectionsHolder {
-        private static final ConnectionsImpl<String> instance = new ConnectionsImpl<>();
-    }
+    /** Command line every broadcast frame starts with. */
+    private static final String MESSAGE_COMMAND = "MESSAGE\n";
 
-    @SuppressWarnings("unchecked")
-    public static <T> ConnectionsImpl<T> getInstance() {
-        return (ConnectionsImpl<T>) ConnectionsHolder.instance;
-    }
+    // --- Replay ---
+    // Size of each channel's replay ring (see ChannelLog), and how many channels get one; later
+    // channels still number their messages but cannot replay them, and their numbering starts
+    // over once nobody is subscribed. 0 bytes or frames = no replay.
+    private static final int REPLAY_BYTES = Integer.getInteger("stomp.replay.bytes", 1 << 15); // 32k
+    private static final int REPLAY_FRAMES = Integer.getInteger("stomp.replay.frames", 256);
+    private static final int MAX_REPLAY_CHANNELS = Integer.getInteger("stomp.replay.maxChannels", 4096);
+
+    // --- Parallel Fan-out ---
+    // Topics with more subscribers than this are delivered by several threads, one lane each.
+    private static final int FAN_OUT_THRESHOLD = Integer.getInteger("stomp.fanout.threshold", 1024);
+    private static final int FAN_OUT_LANES = Integer.getInteger("stomp.fanout.lanes",
+            Runtime.getRuntime().availableProcessors());
+    // Lanes are actors on a pool of their own, at most one daemon thread per lane, started on
+    // first use: each lane runs its deliveries in order, and no other work waits behind them.
+    private static final AtomicInteger FAN_OUT_THREADS = new AtomicInteger();
+    private static final ActorThreadPool FAN_OUT_POOL = new ActorThreadPool(
+            Executors.newFixedThreadPool(FAN_OUT_LANES, r -> {
+                Thread t = new Thread(r, "fan-out-" + FAN_OUT_THREADS.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }));
+
+    // --- Wildcards ---
+    // Concrete destinations whose wildcard matches are cached (see DestinationTrie).
+    private static final int WILDCARD_CACHE_SIZE = Integer.getInteger("stomp.wildcard.cacheSize", 1 << 16);
+
+    // --- Conflation ---
+    // Destinations (wildcards allowed, comma-separated) whose frames may be conflated by their
+    // conflate-key header. Empty: conflation is off everywhere.
+    private static final String[] CONFLATED_DESTINATIONS = patterns(System.getProperty("stomp.conflate.destinations", ""));
+
+    // --- Metrics ---
+    // Shared by every server in the JVM.
+    private static final Metrics.Counter ACTIVE_CONNECTIONS = Metrics.counter("connections.active");
+    private static final Metrics.Counter ACTIVE_SUBSCRIPTIONS = Metrics.counter("subscriptions.active");
+    private static final Metrics.Counter MESSAGES_OUT = Metrics.counter("stomp.frames.out.MESSAGE");
+    // Subscribers reached per broadcast, wildcard matches included.
+    private static final Histogram FAN_OUT_SIZE = Metrics.histogram("broadcast.fanout");
 
     // --- Data Structures ---
 
     /**
-     * Map of all active connections.
-     * Key: Unique Connection ID (int)
+     * Table of all active connections.
+     * Key: Unique Connection ID (int), also generated by the table (ids are never reused)
      * Value: The ConnectionHandler responsible for that client.
+     * <p>
+     * Ids are dense, so the table is indexed by the id itself: {@link #send(int, Object)}
+     * does no boxing and no hashing.
      */
-    private final ConcurrentHashMap<Integer, ConnectionHandler<T>> activeConnections;
+    private final ConnectionTable<ConnectionHandler<T>> activeConnections;
 
     /**
      * Map of channel subscriptions.
      * Key: Channel Name (String)
-     * Value: A Map where Key is Connection ID and Value is the Subscription ID (String).
+     * Value: The channel's {@link Topic}, a copy-on-write array of (handler, encoded MESSAGE
+     * header of that subscription, {@code "MESSAGE\nsubscription:<id>\n"}) pairs.
      * <p>
      * Logic: We need to know not just *who* is subscribed to a channel, but also
      * what specific Subscription ID they used, so we can attach it to the message header.
+     * The header is encoded once, at subscribe time, instead of once per delivered message,
+     * and the handler is resolved at subscribe time too, so a broadcast is a plain array loop.
      */
-    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, String>> channelSubscribers;
+    private final ConcurrentHashMap<String, Topic<T>> channelSubscribers;
 
     /**
-     * Atomic counter to generate unique connection IDs.
+     * Subscriptions to wildcard patterns such as {@code /worldcup/#}, which cannot be looked up
+     * by exact name. A broadcast delivers to the channel's exact subscribers and to the cached
+     * wildcard matches of the channel.
      */
-    private final AtomicInteger connectionIdCounter = new AtomicInteger(0);
-    
+    private final DestinationTrie<T> wildcardSubscribers;
+
+    /**
+     * Reverse index of {@link #channelSubscribers}.
+     * Key: Connection ID
+     * Value: The channels that connection is subscribed to.
+     * <p>
+     * Lets {@link #disconnect(int)} clean up only the channels of the leaving client instead of
+     * visiting every channel on the server. Kept in sync by subscribe/unsubscribe.
+     */
+    private final ConcurrentHashMap<Integer, Set<String>> connectionChannels;
+
+    /**
+     * Message sequence and replay ring of every channel that has been published to (or asked
+     * for a replay).
+     * Key: Channel Name (String)
+     * Value: The channel's {@link ChannelLog}; its monitor orders the channel's broadcasts.
+     * <p>
+     * Unlike the topics, logs with a replay ring are kept when the last subscriber leaves: that
+     * is exactly when a reconnecting client needs one, and there are at most
+     * {@code stomp.replay.maxChannels} of them. A log without a ring is dropped as soon as its
+     * channel has no subscribers, so publishing to ever new destination names does not grow the
+     * map; the channel's numbering then starts over at 1.
+     */
+    private final ConcurrentHashMap<String, ChannelLog> channelLogs;
+
     /**
-     * Private Constructor (Singleton).
+     * One mailbox per fan-out lane. Lane {@code i} delivers the broadcasts of every large topic
+     * to the subscribers with connection id {@code i} modulo the lane count, in publish order.
      */
-    private ConnectionsImpl() {
-        this.activeConnections = new ConcurrentHashMap<>();
+    private final ActorThreadPool.Mailbox[] fanOutLanes;
+
+    /**
+     * Topic size above which broadcasts are split into lanes; {@link Integer#MAX_VALUE} if this
+     * server's handlers may block while sending, and every topic is delivered inline.
+     */
+    private final int fanOutThreshold;
+
+    /**
+     * Creates an empty connection registry for one server whose handlers may block while they
+     * send (thread-per-client). Every broadcast is delivered inline by the publishing thread.
+     */
+    public ConnectionsImpl() {
+        this(false);
+    }
+
+    /**
+     * Creates an empty connection registry for one server.
+     *
+     * @param parallelFanOut Whether large topics may be delivered in lanes on the fan-out pool.
+     *                       Only safe when every handler just queues what it is sent (the
+     *                       Reactor): a handler that blocks on its socket would stall its lane,
+     *                       and every subscriber behind it, for as long as its client is slow.
+     */
+    public ConnectionsImpl(boolean parallelFanOut) {
+        this.fanOutThreshold = parallelFanOut ? FAN_OUT_THRESHOLD : Integer.MAX_VALUE;
+        this.activeConnections = new ConnectionTable<>();
         this.channelSubscribers = new ConcurrentHashMap<>();
+        this.wildcardSubscribers = new DestinationTrie<>(fanOutThreshold, FAN_OUT_LANES, WILDCARD_CACHE_SIZE);
+        this.connectionChannels = new ConcurrentHashMap<>();
+        this.channelLogs = new ConcurrentHashMap<>();
+        this.fanOutLanes = new ActorThreadPool.Mailbox[parallelFanOut ? FAN_OUT_LANES : 0];
+        for (int i = 0; i < fanOutLanes.length; i++) {
+            fanOutLanes[i] = new ActorThreadPool.Mailbox();
+        }
     }
 
     /**
@@ -64,9 +171,8 @@ public class ConnectionsImpl<T> implements Connections<T> {
      * @return The assigned unique connection ID.
      */
     public int addActiveHandler(ConnectionHandler<T> handler) {
-        int id = connectionIdCounter.incrementAndGet();
-        activeConnections.put(id, handler);
-        return id;
+        ACTIVE_CONNECTIONS.increment();
+        return activeConnections.add(handler);
     }
 
     /**
@@ -86,6 +192,37 @@ public class ConnectionsImpl<T> implements Connections<T> {
         return false; 
     }
 
+    /**
+     * Sends an already encoded frame, given as consecutive parts, to a specific client.
+     * Used for replies whose fixed parts are encoded once and shared, such as RECEIPT.
+     *
+     * @param connectionId The target client's unique ID.
+     * @param parts        The encoded frame, terminating NUL included.
+     * @return true if the frame was sent, false if the connection ID was not found.
+     */
+    public boolean sendEncoded(int connectionId, ByteBuffer... parts) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler != null) {
+            handler.sendEncoded(parts);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts heart-beating on a connection (see {@link ConnectionHandler#startHeartbeat}).
+     *
+     * @param connectionId      The client's connection ID.
+     * @param sendEveryMillis   How often the server must send something, 0 for never.
+     * @param expectEveryMillis How often the client must send something, 0 for never.
+     */
+    public void startHeartbeat(int connectionId, long sendEveryMillis, long expectEveryMillis) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler != null) {
+            handler.startHeartbeat(sendEveryMillis, expectEveryMillis);
+        }
+    }
+
     /**
      * Sends a message to all subscribers of a specific channel.
      * <p>
@@ -97,30 +234,177 @@ public class ConnectionsImpl<T> implements Connections<T> {
      * replaced it — a fragile strategy that would corrupt messages whose <em>body</em>
      * happens to contain that literal string.  We now insert the subscription header
      * directly after the {@code "MESSAGE\n"} command line, so the body is never touched.
+     * <p>
+     * The part of the frame after the command line is the same for every subscriber, so it is
+     * encoded exactly once into a read-only buffer. Each subscriber gets its pre-encoded
+     * {@code "MESSAGE\nsubscription:<id>\n"} header plus a {@code duplicate()} of that shared
+     * buffer, and no per-subscriber String is ever built.
      *
      * @param channel The channel/topic name.
      * @param msg     The base MESSAGE frame (starts with "MESSAGE\n", no subscription header).
      */
     @Override
     public void send(String channel, T msg) {
-        ConcurrentHashMap<Integer, String> subscribers = channelSubscribers.get(channel);
-
-        if (subscribers != null) {
-            String originalMsg = (String) msg; // T is always String for this protocol
-            // The frame starts with "MESSAGE\n"; insert subscription header right after that.
-            final String prefix = "MESSAGE\n";
-            String rest = originalMsg.startsWith(prefix)
-                    ? originalMsg.substring(prefix.length())
+        if (channelSubscribers.containsKey(channel) || wildcardSubscribers.matches(channel) != null) {
+            String originalMsg = String.valueOf(msg); // T's text form is the STOMP frame
+            // The frame starts with "MESSAGE\n"; the subscription header goes right after that.
+            String rest = originalMsg.startsWith(MESSAGE_COMMAND)
+                    ? originalMsg.substring(MESSAGE_COMMAND.length())
                     : originalMsg;
 
-            for (Map.Entry<Integer, String> entry : subscribers.entrySet()) {
-                Integer connId = entry.getKey();
-                String subId   = entry.getValue();
-                // Build a personalised frame: MESSAGE\nsubscription:<id>\n<rest of headers + body>
-                String personalizedMsg = prefix + "subscription:" + subId + "\n" + rest;
-                send(connId, (T) personalizedMsg);
+            broadcast(channel, ByteBuffer.wrap((rest + '\u0000').getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Delivers an already encoded MESSAGE frame remainder to every subscriber of a channel.
+     *
+     * @param channel The channel/topic name.
+     * @param body    The encoded frame after the command line (headers, body and the NUL terminator).
+     */
+    public void broadcast(String channel, ByteBuffer body) {
+        broadcast(channel, seq -> body);
+    }
+
+    /**
+     * Numbers, records and delivers a MESSAGE frame remainder on a channel, see
+     * {@link #broadcast(String, String, LongFunction)}.
+     */
+    public long broadcast(String channel, LongFunction<ByteBuffer> encoder) {
+        return broadcast(channel, null, encoder);
+    }
+
+    /**
+     * Numbers, records and delivers a MESSAGE frame remainder on a channel.
+     * <p>
+     * The channel's next sequence number is handed to {@code encoder}, which builds the frame
+     * remainder (typically with the number as its {@code message-id}). Numbering, recording in
+     * the replay ring and taking the subscriber snapshot happen under the channel's log monitor,
+     * so every frame is either replayed to a subscriber that joins with a {@code from-seq} or
+     * delivered to it live, never both and never neither. The frame is also handed to the
+     * subscribers under the monitor, so two publishers of a channel cannot deliver seq N+1
+     * before N. In the reactor that is only an enqueue per subscriber (or one task per lane);
+     * with blocking handlers the publishers of a channel take turns writing to its subscribers.
+     * <p>
+     * Small topics are delivered right here, on the publisher's thread. Once a topic has more
+     * than {@code stomp.fanout.threshold} subscribers, each of its lanes is queued as one task
+     * on the lane's mailbox instead, so a huge topic is written out by all cores and the
+     * publisher returns at once. Lanes are FIFO and a subscriber never changes lane, so every
+     * subscriber still receives the channel's frames in publish order.
+     * <p>
+     * On a channel listed in {@code stomp.conflate.destinations}, a frame with a conflation key
+     * (a stat such as {@code possession}) replaces the frame of the same channel and key that is
+     * still waiting in a subscriber's outbound queue, instead of queueing behind it. Frames
+     * without a key are never conflated. The replay ring keeps every frame either way.
+     *
+     * @param channel      The channel/topic name.
+     * @param conflateKey  What the frame updates, or {@code null} if it must reach every subscriber.
+     * @param encoder      Builds the encoded frame after the command line from the sequence number.
+     *                     It runs under the log monitor, so state it updates along the way (such
+     *                     as the game state behind snapshots) moves in step with the sequence.
+     * @return the sequence number given to the frame
+     */
+    public long broadcast(String channel, String conflateKey, LongFunction<ByteBuffer> encoder) {
+        // The key is only built for conflated channels; one String shared by all subscribers.
+        Object key = conflateKey != null && isConflated(channel) ? channel + '\n' + conflateKey : null;
+        long seq;
+        int reached = 0;
+        for (;;) {
+            ChannelLog log = channelLog(channel);
+            synchronized (log) {
+                if (log.retired) {
+                    continue; // Dropped while we waited for it; the channel gets a new one
+                }
+                seq = log.nextSeq();
+                ByteBuffer shared = encoder.apply(seq).asReadOnlyBuffer();
+                log.record(shared);
+                Topic<T> topic = channelSubscribers.get(channel);
+                if (topic != null) {
+                    reached += topic.subscribers().length;
+                    dispatch(topic.lanes(), topic.subscribers(), shared, key);
+                }
+                Topic<T> wildcards = wildcardSubscribers.matches(channel);
+                if (wildcards != null) {
+                    reached += wildcards.subscribers().length;
+                    dispatch(wildcards.lanes(), wildcards.subscribers(), shared, key);
+                }
+                if (reached == 0) {
+                    retireIfIdle(channel, log);
+                }
+                break;
             }
         }
+
+        FAN_OUT_SIZE.record(reached);
+        MESSAGES_OUT.add(reached);
+        return seq;
+    }
+
+    /**
+     * Delivers a frame to a snapshot of subscribers: lane by lane on the fan-out pool if the
+     * topic is split into lanes, otherwise right here.
+     */
+    private void dispatch(Topic.Subscriber<T>[][] lanes, Topic.Subscriber<T>[] subscribers, ByteBuffer shared,
+            Object key) {
+        if (lanes != null) {
+            for (int i = 0; i < lanes.length; i++) {
+                Topic.Subscriber<T>[] lane = lanes[i];
+                if (lane.length > 0) {
+                    FAN_OUT_POOL.submit(fanOutLanes[i], () -> deliver(lane, shared, key));
+                }
+            }
+        } else if (subscribers != null) {
+            deliver(subscribers, shared, key);
+        }
+    }
+
+    private static <T> void deliver(Topic.Subscriber<T>[] subscribers, ByteBuffer shared, Object key) {
+        if (key == null) {
+            for (Topic.Subscriber<T> subscriber : subscribers) {
+                subscriber.handler.sendShared(subscriber.header.duplicate(), shared.duplicate());
+            }
+        } else {
+            for (Topic.Subscriber<T> subscriber : subscribers) {
+                subscriber.handler.sendConflatable(subscriber.header.duplicate(), shared.duplicate(), key);
+            }
+        }
+    }
+
+    /**
+     * @return true if frames published on the channel may be conflated by key
+     */
+    public boolean isConflated(String channel) {
+        for (String pattern : CONFLATED_DESTINATIONS) {
+            if (DestinationTrie.matches(pattern, channel)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] patterns(String list) {
+        return Arrays.stream(list.split(","))
+                .map(String::trim)
+                .filter(pattern -> !pattern.isEmpty())
+                .toArray(String[]::new);
+    }
+
+    private ChannelLog channelLog(String channel) {
+        return channelLogs.computeIfAbsent(channel, name -> channelLogs.size() < MAX_REPLAY_CHANNELS
+                ? new ChannelLog(REPLAY_BYTES, REPLAY_FRAMES)
+                : new ChannelLog(0, 0));
+    }
+
+    /**
+     * Drops a channel's log if it has no replay ring and the channel has no subscribers left.
+     * Must be called holding the log's monitor.
+     */
+    private void retireIfIdle(String channel, ChannelLog log) {
+        if (!log.retired && !log.replays()
+                && !channelSubscribers.containsKey(channel) && wildcardSubscribers.matches(channel) == null) {
+            log.retired = true;
+            channelLogs.remove(channel, log);
+        }
     }
 
     /**
@@ -132,14 +416,17 @@ public class ConnectionsImpl<T> implements Connections<T> {
      */
     @Override
     public void disconnect(int connectionId) {
-        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        // Remove from active connections (only one concurrent caller gets the handler)
+        ConnectionHandler<T> handler = activeConnections.remove(connectionId);
         if (handler != null) {
-            // Remove from active connections
-            activeConnections.remove(connectionId);
-            
-            // Remove from all topics they might be subscribed to
-            for (Map<Integer, String> subs : channelSubscribers.values()) {
-                subs.remove(connectionId);
+            ACTIVE_CONNECTIONS.decrement();
+            // Remove from the topics they are subscribed to (and only those)
+            Set<String> channels = connectionChannels.remove(connectionId);
+            if (channels != null) {
+                ACTIVE_SUBSCRIPTIONS.add(-channels.size());
+                for (String channel : channels) {
+                    removeSubscriber(channel, connectionId);
+                }
             }
             
             // Close the actual socket handler
@@ -155,6 +442,7 @@ public class ConnectionsImpl<T> implements Connections<T> {
      * Legacy/Helper method to manually add a connection (mostly for testing).
      */
     public void addConnection(int connectionId, ConnectionHandler<T> handler) {
+        ACTIVE_CONNECTIONS.increment();
         activeConnections.put(connectionId, handler);
     }
 
@@ -166,8 +454,119 @@ public class ConnectionsImpl<T> implements Connections<T> {
      * @param subscriptionId The unique subscription ID provided by the client frame.
      */
     public void subscribe(String channel, int connectionId, String subscriptionId) {
-        channelSubscribers.computeIfAbsent(channel, k -> new ConcurrentHashMap<>())
-                          .put(connectionId, subscriptionId);
+        addSubscriber(channel, connectionId, subscriptionId);
+    }
+
+    /**
+     * Subscribes a client to a channel and first replays the channel's frames numbered
+     * {@code fromSeq} and later that are still in its replay ring.
+     * <p>
+     * The replayed frames are queued while holding the channel's log monitor, so they reach the
+     * client before any frame broadcast after it joined, with no gap and no duplicate between
+     * the two. Frames older than the ring are not replayed; the client sees the jump in the
+     * {@code message-id} numbers.
+     *
+     * @param channel        The topic name.
+     * @param connectionId   The client's connection ID.
+     * @param subscriptionId The unique subscription ID provided by the client frame.
+     * @param fromSeq        The first sequence number the client wants to see again.
+     */
+    public void subscribe(String channel, int connectionId, String subscriptionId, long fromSeq) {
+        for (;;) {
+            ChannelLog log = channelLog(channel);
+            synchronized (log) {
+                if (log.retired) {
+                    continue;
+                }
+                Topic.Subscriber<T> subscriber = addSubscriber(channel, connectionId, subscriptionId);
+                if (subscriber == null) {
+                    return;
+                }
+                List<ByteBuffer> missed = log.copyFrom(fromSeq);
+                MESSAGES_OUT.add(missed.size());
+                for (ByteBuffer frame : missed) {
+                    subscriber.handler.sendShared(subscriber.header.duplicate(), frame);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Subscribes a client to a channel and first sends it one frame that sums up the channel so
+     * far, e.g. the state of a game.
+     * <p>
+     * The snapshot is taken and queued while holding the channel's log monitor, the same one
+     * {@link #broadcast(String, LongFunction)} numbers and encodes frames under. It therefore
+     * covers exactly the frames broadcast before the client joined, and every later one reaches
+     * the client after it.
+     *
+     * @param channel        The topic name.
+     * @param connectionId   The client's connection ID.
+     * @param subscriptionId The unique subscription ID provided by the client frame.
+     * @param snapshot       Encodes the snapshot frame's remainder, everything after the
+     *                       {@code subscription} header (as for {@code broadcast}).
+     */
+    public void subscribe(String channel, int connectionId, String subscriptionId, Supplier<ByteBuffer> snapshot) {
+        for (;;) {
+            ChannelLog log = channelLog(channel);
+            synchronized (log) {
+                if (log.retired) {
+                    continue;
+                }
+                Topic.Subscriber<T> subscriber = addSubscriber(channel, connectionId, subscriptionId);
+                if (subscriber != null) {
+                    MESSAGES_OUT.increment();
+                    subscriber.handler.sendShared(subscriber.header.duplicate(), snapshot.get().asReadOnlyBuffer());
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds a client to a channel's topic and to the reverse index.
+     *
+     * @return the new subscription, or {@code null} if the client is not (or no longer) connected
+     */
+    private Topic.Subscriber<T> addSubscriber(String channel, int connectionId, String subscriptionId) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler == null) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.wrap(
+                (MESSAGE_COMMAND + "subscription:" + subscriptionId + "\n").getBytes(StandardCharsets.UTF_8))
+                .asReadOnlyBuffer();
+        // compute() runs atomically per channel, so an unsubscribe that empties and removes the
+        // topic cannot race with this add.
+        Topic.Subscriber<T> subscriber = new Topic.Subscriber<>(connectionId, handler, header);
+        if (DestinationTrie.isPattern(channel)) {
+            wildcardSubscribers.add(channel, subscriber);
+        } else {
+            channelSubscribers.compute(channel, (name, topic) -> {
+                if (topic == null) {
+                    topic = new Topic<>(fanOutThreshold, FAN_OUT_LANES);
+                }
+                topic.add(subscriber);
+                return topic;
+            });
+        }
+        connectionChannels.compute(connectionId, (id, channels) -> {
+            if (channels == null) {
+                channels = ConcurrentHashMap.newKeySet();
+            }
+            if (channels.add(channel)) {
+                ACTIVE_SUBSCRIPTIONS.increment();
+            }
+            return channels;
+        });
+
+        // The client may have been disconnected (e.g. by the I/O thread) while subscribing.
+        if (!activeConnections.contains(connectionId)) {
+            unsubscribe(channel, connectionId);
+            return null;
+        }
+        return subscriber;
     }
     
     /**
@@ -177,8 +576,30 @@ public class ConnectionsImpl<T> implements Connections<T> {
      * @param connectionId The client's connection ID.
      */
     public void unsubscribe(String channel, int connectionId) {
-        if (channelSubscribers.containsKey(channel)) {
-            channelSubscribers.get(channel).remove(connectionId);
+        removeSubscriber(channel, connectionId);
+        connectionChannels.computeIfPresent(connectionId, (id, channels) -> {
+            if (channels.remove(channel)) {
+                ACTIVE_SUBSCRIPTIONS.decrement();
+            }
+            return channels.isEmpty() ? null : channels;
+        });
+    }
+
+    /**
+     * Removes a client from one channel's topic (or wildcard pattern), and the topic itself once
+     * it is empty. The log of a channel left without subscribers goes too if it has no ring.
+     */
+    private void removeSubscriber(String channel, int connectionId) {
+        if (DestinationTrie.isPattern(channel)) {
+            wildcardSubscribers.remove(channel, connectionId);
+        } else if (channelSubscribers.computeIfPresent(channel,
+                (name, topic) -> topic.remove(connectionId) ? null : topic) == null) {
+            ChannelLog log = channelLogs.get(channel);
+            if (log != null) {
+                synchronized (log) {
+                    retireIfIdle(channel, log);
+                }
+            }
         }
     }
-}
\ No newline at end of file
+}
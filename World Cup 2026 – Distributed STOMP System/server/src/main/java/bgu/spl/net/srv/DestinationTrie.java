@@ -0,0 +1,290 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The wildcard subscriptions of a server, kept in a trie of destination segments.
+ * <p>
+ * Destinations are hierarchical, with segments separated by {@code '/'}
+ * ({@code /worldcup/groupE/germany_japan}). In a subscription pattern a {@code *} segment matches
+ * exactly one segment and a trailing {@code #} matches any number of segments, none included:
+ * {@code /worldcup/*}{@code /germany_japan} and {@code /worldcup/#} both match the game above.
+ * Subscriptions without wildcards never enter the trie; {@link ConnectionsImpl} keeps them in
+ * its exact-match map.
+ * <p>
+ * Publishing must not cost more as dashboards add patterns, so the subscribers matched by a
+ * concrete destination are cached, as a ready-made {@link Topic}. Every node has a version,
+ * bumped when its own subscriptions or its children change, and a cached entry remembers the
+ * versions of the nodes it was collected from. It is only used while they are all current, so
+ * a new pattern under {@code /worldcup/groupE} leaves the cached matches of other groups alone.
+ * A publish to a known destination is therefore one map lookup and a volatile read per node
+ * on its path. Changes, which are rare, take the trie's monitor and also rebuild the matches
+ * lazily under it.
+ *
+ * @param <T> The type of message (e.g., String).
+ */
+public final class DestinationTrie<T> {
+
+    private static final String ANY_ONE = "*";
+    private static final String ANY_REST = "#";
+
+    /** One segment of the patterns; the root stands for the empty prefix. */
+    private static final class Node<T> {
+        final Map<String, Node<T>> children = new HashMap<>();
+        // The subscriptions whose pattern ends at this node.
+        Topic<T> subscribers;
+        // Bumped whenever the subscribers or the children of this node change.
+        volatile long version = 0;
+    }
+
+    /** The subscribers matched by one concrete destination, and the nodes they came from. */
+    private static final class Match<T> {
+        final Node<T>[] nodes;
+        final long[] versions;
+        final Topic<T> topic;
+
+        Match(List<Node<T>> visited, Topic<T> topic) {
+            this.nodes = visited.toArray(newNodes(0));
+            this.versions = new long[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                versions[i] = nodes[i].version;
+            }
+            this.topic = topic;
+        }
+
+        /**
+         * @return true while no node this match was collected from has changed
+         */
+        boolean isCurrent() {
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i].version != versions[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Node<T> root = new Node<>();
+    private final int fanOutThreshold;
+    private final int laneCount;
+    private final int maxCachedDestinations;
+    private final ConcurrentHashMap<String, Match<T>> matches = new ConcurrentHashMap<>();
+    /**
+     * Destinations whose matches have been delivered in lanes. Like a {@link Topic} that
+     * shrinks, they keep using lanes, whether or not their matches are still cached: going back
+     * to inline delivery could overtake frames still queued on a lane.
+     */
+    private final Set<String> parallelDestinations = ConcurrentHashMap.newKeySet();
+    private volatile int patterns = 0;
+
+    /**
+     * @param fanOutThreshold       see {@link Topic}
+     * @param laneCount             see {@link Topic}
+     * @param maxCachedDestinations destinations whose matches are cached; beyond it, matches are
+     *                              computed on every publish
+     */
+    DestinationTrie(int fanOutThreshold, int laneCount, int maxCachedDestinations) {
+        this.fanOutThreshold = fanOutThreshold;
+        this.laneCount = laneCount;
+        this.maxCachedDestinations = maxCachedDestinations;
+    }
+
+    /**
+     * @return true if the destination has a {@code *} or {@code #} segment
+     */
+    public static boolean isPattern(String destination) {
+        for (String segment : segments(destination)) {
+            if (segment.equals(ANY_ONE) || segment.equals(ANY_REST)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if a {@code #} segment is not the last one; such patterns are not supported
+     */
+    public static boolean isValidPattern(String destination) {
+        String[] segments = segments(destination);
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (segments[i].equals(ANY_REST)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Matches a single pattern (or plain destination) against a concrete destination, with the
+     * rules of the trie. For the odd check against a short list of patterns; use the trie itself
+     * for subscriptions.
+     */
+    public static boolean matches(String pattern, String destination) {
+        String[] patternSegments = segments(pattern);
+        String[] destinationSegments = segments(destination);
+        int d = 0;
+        for (String segment : patternSegments) {
+            if (segment.equals(ANY_REST)) {
+                return true;
+            }
+            if (d == destinationSegments.length
+                    || !(segment.equals(ANY_ONE) || segment.equals(destinationSegments[d]))) {
+                return false;
+            }
+            d++;
+        }
+        return d == destinationSegments.length;
+    }
+
+    /**
+     * Adds a subscription to a pattern, replacing one of the same connection.
+     */
+    synchronized void add(String pattern, Topic.Subscriber<T> subscriber) {
+        Node<T> node = root;
+        for (String segment : segments(pattern)) {
+            Node<T> child = node.children.get(segment);
+            if (child == null) {
+                child = new Node<>();
+                node.children.put(segment, child);
+                node.version++;
+            }
+            node = child;
+        }
+        if (node.subscribers == null) {
+            node.subscribers = new Topic<>(fanOutThreshold, laneCount);
+        }
+        int before = node.subscribers.subscribers().length;
+        node.subscribers.add(subscriber);
+        patterns += node.subscribers.subscribers().length - before;
+        node.version++;
+    }
+
+    /**
+     * Removes a connection's subscription to a pattern, if it has one, and prunes the nodes
+     * left without subscriptions.
+     */
+    synchronized void remove(String pattern, int connectionId) {
+        String[] segments = segments(pattern);
+        List<Node<T>> path = new ArrayList<>(segments.length + 1);
+        Node<T> node = root;
+        path.add(node);
+        for (String segment : segments) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return;
+            }
+            path.add(node);
+        }
+        if (node.subscribers == null) {
+            return;
+        }
+        int before = node.subscribers.subscribers().length;
+        if (node.subscribers.remove(connectionId)) {
+            node.subscribers = null;
+        }
+        int removed = before - (node.subscribers == null ? 0 : node.subscribers.subscribers().length);
+        if (removed == 0) {
+            return;
+        }
+        patterns -= removed;
+        node.version++;
+        for (int i = segments.length; i > 0; i--) {
+            Node<T> n = path.get(i);
+            if (n.subscribers != null || !n.children.isEmpty()) {
+                break;
+            }
+            Node<T> parent = path.get(i - 1);
+            parent.children.remove(segments[i - 1]);
+            parent.version++;
+        }
+    }
+
+    /**
+     * @return the wildcard subscriptions matching a concrete destination, or {@code null} if
+     *         there are none
+     */
+    Topic<T> matches(String destination) {
+        if (patterns == 0) {
+            return null;
+        }
+        Match<T> cached = matches.get(destination);
+        if (cached != null && cached.isCurrent()) {
+            return cached.topic;
+        }
+        return rebuild(destination, cached != null);
+    }
+
+    private synchronized Topic<T> rebuild(String destination, boolean wasCached) {
+        List<Topic.Subscriber<T>> found = new ArrayList<>();
+        List<Node<T>> visited = new ArrayList<>();
+        collect(root, segments(destination), 0, found, visited);
+
+        Topic<T> topic = null;
+        if (!found.isEmpty()) {
+            Topic.Subscriber<T>[] array = found.toArray(Topic.newArray(0));
+            topic = Topic.of(array, fanOutThreshold, laneCount, parallelDestinations.contains(destination));
+            if (topic.lanes() != null) {
+                parallelDestinations.add(destination);
+            }
+        }
+        if (wasCached || matches.size() < maxCachedDestinations) {
+            matches.put(destination, new Match<>(visited, topic));
+        }
+        return topic;
+    }
+
+    /**
+     * Collects the subscriptions matching {@code segments} from {@code index} on, and every node
+     * whose subscribers or children were looked at.
+     */
+    private static <T> void collect(Node<T> node, String[] segments, int index, List<Topic.Subscriber<T>> out,
+            List<Node<T>> visited) {
+        visited.add(node);
+        Node<T> rest = node.children.get(ANY_REST);
+        if (rest != null) {
+            visited.add(rest);
+            if (rest.subscribers != null) {
+                addAll(rest.subscribers, out);
+            }
+        }
+        if (index == segments.length) {
+            if (node.subscribers != null) {
+                addAll(node.subscribers, out);
+            }
+            return;
+        }
+        Node<T> exact = node.children.get(segments[index]);
+        if (exact != null) {
+            collect(exact, segments, index + 1, out, visited);
+        }
+        Node<T> one = node.children.get(ANY_ONE);
+        if (one != null) {
+            collect(one, segments, index + 1, out, visited);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Node<T>[] newNodes(int length) {
+        return (Node<T>[]) new Node<?>[length];
+    }
+
+    private static <T> void addAll(Topic<T> topic, List<Topic.Subscriber<T>> out) {
+        for (Topic.Subscriber<T> s : topic.subscribers()) {
+            out.add(s);
+        }
+    }
+
+    /**
+     * Splits a destination into its segments; a leading {@code '/'} is ignored.
+     */
+    private static String[] segments(String destination) {
+        String path = destination.startsWith("/") ? destination.substring(1) : destination;
+        return path.split("/", -1);
+    }
+}
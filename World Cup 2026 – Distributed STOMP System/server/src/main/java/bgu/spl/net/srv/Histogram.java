@@ -0,0 +1,124 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values (latencies, sizes), with log-linear buckets in
+ * the manner of HdrHistogram.
+ * <p>
+ * Values below {@value #SUB_BUCKETS} get a bucket each. Above that, every power of two is cut
+ * into {@value #SUB_BUCKETS} equal buckets, so a value is known to within about 3% of itself
+ * whatever its magnitude: a 40 µs and a 4 s SQL round-trip are both resolved usefully, with a
+ * fixed table of {@value #BUCKET_COUNT} counters. Recording finds the bucket with a few shifts
+ * and increments it; it takes no lock and allocates nothing. Percentiles are computed when the
+ * histogram is read, from a snapshot of the counters that may be a few values behind.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 32
+    // One run of sub-buckets for [0, 32), then one per power of two from 2^5 to 2^62.
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS; // 1888
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Histogram() {
+    }
+
+    /**
+     * Records one value; negative values count as 0.
+     */
+    public void record(long value) {
+        long v = Math.max(value, 0);
+        buckets.incrementAndGet(bucket(v));
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return the largest value recorded, 0 if none
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @return the value below which {@code percentile} percent of the recorded values fall
+     *         (the highest value of its bucket, at most {@link #max()}), 0 if none were recorded
+     */
+    public long percentile(double percentile) {
+        return percentiles(new double[] { percentile })[0];
+    }
+
+    private long[] percentiles(double[] percentiles) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long[] values = new long[percentiles.length];
+        if (total == 0) {
+            return values;
+        }
+        long highest = max.get();
+        int bucket = 0;
+        long seen = counts[0];
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100 * total));
+            while (seen < rank && bucket < BUCKET_COUNT - 1) {
+                seen += counts[++bucket];
+            }
+            values[p] = Math.min(highestIn(bucket), highest);
+        }
+        return values;
+    }
+
+    /**
+     * Appends {@code count=.. mean=.. p50=.. p90=.. p99=.. p999=.. max=..}.
+     */
+    void render(StringBuilder out) {
+        long n = count.sum();
+        out.append("count=").append(n)
+                .append(" mean=").append(n == 0 ? 0 : sum.sum() / n);
+        long[] values = percentiles(PERCENTILES);
+        for (int i = 0; i < values.length; i++) {
+            out.append(' ').append(PERCENTILE_NAMES[i]).append('=').append(values[i]);
+        }
+        out.append(" max=").append(max.get());
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value); // >= SUB_BUCKET_BITS
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long highestIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long sub = (bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,140 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The server's runtime numbers, in one process-wide registry of named metrics.
+ * <p>
+ * There are three kinds: {@link Counter}s (a striped {@link LongAdder}), {@link Histogram}s and
+ * gauges (a {@link LongSupplier} read on demand, for values that already live somewhere, such
+ * as a pool's size). Code looks its metrics up once, into {@code static final} fields, so the
+ * hot path only ever increments an adder or records into a histogram: no lock, no map lookup
+ * and no allocation. Looking up a name twice returns the same metric, so several classes can
+ * feed one counter (e.g. MESSAGE frames sent by broadcasts and by replays).
+ * <p>
+ * The registry is rendered as text, one {@code name value} line per metric in name order,
+ * for the admin stats destination, for the periodic dump file ({@code stomp.metrics.file})
+ * and at shutdown.
+ */
+public final class Metrics {
+
+    /**
+     * A sum that many threads add to without contending. It may also go down, for numbers
+     * such as active connections.
+     */
+    public static final class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        private Counter() {
+        }
+
+        public void increment() {
+            adder.increment();
+        }
+
+        public void decrement() {
+            adder.decrement();
+        }
+
+        public void add(long amount) {
+            adder.add(amount);
+        }
+
+        public long sum() {
+            return adder.sum();
+        }
+    }
+
+    private static final ConcurrentSkipListMap<String, Object> REGISTRY = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the counter with that name, created on first use
+     */
+    public static Counter counter(String name) {
+        return lookup(name, Counter.class, new Counter());
+    }
+
+    /**
+     * @return the histogram with that name, created on first use
+     */
+    public static Histogram histogram(String name) {
+        return lookup(name, Histogram.class, new Histogram());
+    }
+
+    /**
+     * Registers a value that is read only when the metrics are rendered. A later gauge with the
+     * same name replaces it (e.g. when a server is restarted in the same JVM).
+     */
+    public static void gauge(String name, LongSupplier value) {
+        REGISTRY.put(name, value);
+    }
+
+    private static <M> M lookup(String name, Class<M> type, M fresh) {
+        Object metric = REGISTRY.putIfAbsent(name, fresh);
+        if (metric == null) {
+            return fresh;
+        }
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as another kind");
+        }
+        return type.cast(metric);
+    }
+
+    /**
+     * @return every metric as a {@code name value} line, in name order; histograms show their
+     *         count, mean, percentiles and max
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Object> entry : REGISTRY.entrySet()) {
+            out.append(entry.getKey()).append(' ');
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                out.append(((Counter) metric).sum());
+            } else if (metric instanceof Histogram) {
+                ((Histogram) metric).render(out);
+            } else {
+                out.append(((LongSupplier) metric).getAsLong());
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the rendered metrics to {@code file} every {@code intervalMillis}, from a daemon
+     * thread. Each dump is written next to the file and then moved over it, so a reader never
+     * sees half a dump.
+     */
+    public static void startDump(Path file, long intervalMillis) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        dumper.scheduleAtFixedRate(() -> {
+            try {
+                Files.write(temp, ("# " + Instant.now() + "\n" + render()).getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -5,112 +5,310 @@ import bgu.spl.net.api.StompMessagingProtocol;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles a single client connection using Non-Blocking I/O (NIO).
  * <p>
  * This handler is designed for the Reactor pattern. It does not block on I/O operations.
- * Instead, it manages a write-queue and interacts with the {@link Reactor} to register
- * interest in Reading or Writing events.
+ * Instead, it manages a write-queue and interacts with the {@link SelectorLoop} that owns its
+ * channel to register interest in Reading or Writing events.
  *
  * @param <T> The type of message (e.g., String).
  */
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     // --- Buffer Management ---
-    // A pool of Direct ByteBuffers is used to reduce allocation overhead and GC pressure.
-    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; // 8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    // Read buffers are leased from the size-classed BufferPool to reduce allocation overhead and GC pressure.
+    // Each connection starts with small reads and grows (or shrinks) them with the traffic it sees.
+    private static final int INITIAL_READ_SIZE = Integer.getInteger("stomp.read.initialSize", 1 << 11); // 2k
+
+    // --- Read Draining ---
+    // Fairness budget of one readiness event: after this many bytes / reads the loop moves on to
+    // the other channels and comes back on the next select().
+    private static final int MAX_BYTES_PER_WAKEUP = Integer.getInteger("stomp.read.maxBytesPerWakeup", 1 << 18); // 256k
+    private static final int MAX_READS_PER_WAKEUP = Integer.getInteger("stomp.read.maxReadsPerWakeup", 16);
+
+    // --- Write Coalescing ---
+    // How many buffers / bytes a single gathering write may carry. Both are soft limits:
+    // whole frames are taken from the queue, and at least one frame is always written.
+    private static final int MAX_BUFFERS_PER_WRITE = Integer.getInteger("stomp.write.maxBuffers", 64);
+    private static final int MAX_BYTES_PER_WRITE = Integer.getInteger("stomp.write.maxBytes", 1 << 18); // 256k
+
+    // --- Outbound Back-pressure ---
+    // High-water mark of a connection's outbound queue (queued + in-flight frames), and what to do
+    // with broadcast frames once it is reached. See SlowConsumerPolicy.
+    private static final long MAX_QUEUED_BYTES = Long.getLong("stomp.outbound.maxBytes", 1L << 24); // 16M
+    private static final int MAX_QUEUED_FRAMES = Integer.getInteger("stomp.outbound.maxFrames", 16384);
+    private static final SlowConsumerPolicy POLICY = SlowConsumerPolicy.valueOf(
+            System.getProperty("stomp.outbound.policy", "DISCONNECT").toUpperCase(Locale.ROOT));
+    private static final byte[] SLOW_CONSUMER_ERROR =
+            "ERROR\nmessage:Slow consumer\n\nOutbound queue limit exceeded, closing the connection.\n\u0000"
+                    .getBytes(StandardCharsets.UTF_8);
+
+    // --- Conflation ---
+    // How long conflatable frames are held back so that newer values of the same key can
+    // replace them, rounded up to the loop's timer tick. 0: they are only replaced while they
+    // wait in a backed-up queue.
+    private static final long CONFLATE_WINDOW_NANOS = Long.getLong("stomp.conflate.windowMillis", 0) * 1_000_000L;
+
+    // --- Heart-beating ---
+    // A server heart-beat is a single EOL, shared read-only by every connection.
+    private static final ByteBuffer HEARTBEAT = ByteBuffer.wrap(new byte[] { '\n' }).asReadOnlyBuffer();
+
+    // --- Metrics ---
+    // Syscalls issued vs. frames flushed: their ratio is the average cost of a frame in syscalls.
+    private static final Metrics.Counter WRITE_SYSCALLS = Metrics.counter("reactor.write.syscalls");
+    private static final Metrics.Counter FLUSHED_FRAMES = Metrics.counter("reactor.write.frames");
+    // Read syscalls issued vs. readiness events they served.
+    private static final Metrics.Counter READ_CALLS = Metrics.counter("reactor.read.calls");
+    private static final Metrics.Counter READ_WAKEUPS = Metrics.counter("reactor.read.wakeups");
+    private static final Metrics.Counter BYTES_READ = Metrics.counter("net.bytes.read");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("net.bytes.written");
+    // Broadcast frames discarded by DROP_OLDEST / PAUSE, and connections closed by DISCONNECT.
+    private static final Metrics.Counter DROPPED_FRAMES = Metrics.counter("outbound.dropped.frames");
+    private static final Metrics.Counter SLOW_CONSUMER_EVICTIONS = Metrics.counter("outbound.evictions");
+    // Conflatable frames that replaced an older frame of the same key instead of being queued.
+    private static final Metrics.Counter CONFLATED_FRAMES = Metrics.counter("outbound.conflated.frames");
+    // Heart-beats sent, and connections closed because the peer stopped sending.
+    private static final Metrics.Counter HEARTBEATS_SENT = Metrics.counter("heartbeat.sent");
+    private static final Metrics.Counter IDLE_DISCONNECTS = Metrics.counter("heartbeat.idle.disconnects");
 
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
 
-    // A queue of buffers waiting to be written to the socket
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    // A queue of frames waiting to be written to the socket.
+    // Each entry holds the buffers of one frame, written together with a gathering write.
+    private final Queue<OutboundFrame> writeQueue = new ConcurrentLinkedQueue<>();
+
+    // Frames taken off the write-queue by the last gathering write and not fully written yet.
+    // Only the owning loop touches these two fields.
+    private final ArrayDeque<OutboundFrame> inFlight = new ArrayDeque<>();
+    private ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_BUFFERS_PER_WRITE];
+
+    // Depth of the outbound queue, in-flight frames included. Updated by producers and the loop.
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    // PAUSE: broadcast frames are skipped until the queue drains below the low-water mark.
+    private volatile boolean paused = false;
+    // DISCONNECT: set once; nothing but the ERROR frame is queued afterwards.
+    private final AtomicBoolean evicted = new AtomicBoolean(false);
+
+    // Conflatable frames not taken by the loop yet, by key: queued ones, and the ones held back
+    // for the conflation window in conflationHeld. Its monitor guards both, and the buffers of
+    // the frames in it.
+    private final HashMap<Object, OutboundFrame> conflatable = new HashMap<>();
+    private final ArrayList<OutboundFrame> conflationHeld = new ArrayList<>();
+    private final ConflationTimer conflationTimer = new ConflationTimer();
 
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final SelectorLoop<T> loop;
+    // Read tasks of this connection, run in order by the ActorThreadPool.
+    private final ActorThreadPool.Mailbox mailbox = new ActorThreadPool.Mailbox();
     // J5: stored so continueWrite() can call connections.disconnect() after the
     //     ERROR frame is fully delivered, rather than closing the channel immediately.
     private int connectionId = -1;
+    private final ConnectionsImpl<T> connections;
+    // Size of the next read buffer; only the owning loop touches it.
+    private final ReadSizePredictor readSize = new ReadSizePredictor(INITIAL_READ_SIZE);
+
+    // Heart-beat state, negotiated by the protocol. Only the owning loop touches these fields.
+    private final HeartbeatTimer heartbeatTimer = new HeartbeatTimer();
+    private long sendEveryNanos = 0;
+    private long readTimeoutNanos = 0;
+    private long lastReadNanos;
+    private long lastWriteNanos;
+    // The protocol is told about the close only once, however many paths lead to close().
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    // Set by the loop once the peer has closed its side. From then on the channel is not
+    // watched for reads (see readOps()); producers read it when they ask for OP_WRITE.
+    private volatile boolean inputEnded = false;
+    // Set by the last read task, once everything the peer sent has been processed; the
+    // connection is then disconnected as soon as the replies have been written.
+    private volatile boolean inputProcessed = false;
 
     /**
      * Constructor.
-     * Registers the handler with the global Connections service and initializes the protocol.
+     * Registers the handler with the server's Connections and initializes the protocol.
      *
-     * @param reader   The encoder/decoder for this client.
-     * @param protocol The protocol instance.
-     * @param chan     The non-blocking socket channel.
-     * @param reactor  Reference to the Reactor engine.
+     * @param reader      The encoder/decoder for this client.
+     * @param protocol    The protocol instance.
+     * @param chan        The non-blocking socket channel.
+     * @param loop        The Reactor I/O loop this channel is pinned to.
+     * @param connections The Connections of the server that accepted the client.
      */
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             StompMessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor) {
+            SelectorLoop<T> loop,
+            ConnectionsImpl<T> connections) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
-        this.reactor = reactor;
+        this.loop = loop;
+        this.connections = connections;
 
-        // Register to the global Connections singleton
-        ConnectionsImpl<T> connections = ConnectionsImpl.getInstance();
+        // Register to the server's Connections
         this.connectionId = connections.addActiveHandler(this);
         protocol.start(this.connectionId, connections);
     }
 
     /**
-     * Reads data from the socket channel into a buffer.
+     * Reads data from the socket channel into buffers.
+     * <p>
+     * The socket is drained in one go: reads continue until the socket has nothing more to give
+     * (a read returns 0 or does not fill its buffer) or the fairness budget of
+     * {@link #MAX_BYTES_PER_WAKEUP} bytes / {@link #MAX_READS_PER_WAKEUP} reads is used up.
+     * Every buffer is leased from the {@link BufferPool} with the size predicted from the
+     * connection's earlier reads.
      * <p>
-     * If data is read successfully, it returns a Runnable task. This task will
+     * If data was read, it returns a single Runnable task for all the buffers. This task will
      * be executed by the Reactor (or a thread pool) to decode the bytes and
      * process the resulting messages via the protocol.
+     * <p>
+     * At the end of the stream the task also has the client disconnected, after the bytes read
+     * before it (e.g. a final SEND or DISCONNECT) have been processed, since it runs in order on
+     * the connection's mailbox. The disconnect is left to {@link #continueWrite()}, which makes
+     * it once the replies to those frames (a RECEIPT, an ERROR) have been written.
      *
-     * @return A Runnable containing the processing logic, or null if connection is closed/failed.
+     * @return A Runnable containing the processing logic, or null if there is nothing to process.
      */
     public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+        if (inputEnded) {
+            // A producer asked for OP_READ again before it saw the end of the stream.
+            loop.updateInterestedOps(chan, hasPendingWrites() ? SelectionKey.OP_WRITE : 0);
+            return null;
+        }
+        List<ByteBuffer> batch = null;
+        ByteBuffer single = null;
+        boolean eof = false;
+        int bytes = 0;
+        int reads = 0;
 
-        boolean success = false;
         try {
-            success = chan.read(buf) != -1;
+            while (reads < MAX_READS_PER_WAKEUP && bytes < MAX_BYTES_PER_WAKEUP) {
+                ByteBuffer buf = BufferPool.lease(readSize.nextSize());
+                int read = chan.read(buf);
+                reads++;
+                if (read <= 0) {
+                    BufferPool.release(buf);
+                    eof = read == -1;
+                    break;
+                }
+                readSize.record(read, buf.capacity());
+                bytes += read;
+                buf.flip();
+
+                // Most wakeups carry a single buffer: only build a list for the second one.
+                if (single == null) {
+                    single = buf;
+                } else {
+                    if (batch == null) {
+                        batch = new ArrayList<>();
+                        batch.add(single);
+                    }
+                    batch.add(buf);
+                }
+                if (read < buf.capacity()) {
+                    break; // Socket drained: the next read would return 0
+                }
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
+            eof = true;
+        }
+        READ_CALLS.add(reads);
+        READ_WAKEUPS.increment();
+        BYTES_READ.add(bytes);
+        if (bytes > 0) {
+            lastReadNanos = loop.now();
         }
 
-        if (success) {
-            buf.flip();
+        Runnable decode = decodeTask(batch, single);
+        if (eof) {
+            // Stop watching for reads: the channel would stay readable until it is closed.
+            inputEnded = true;
+            loop.updateInterestedOps(chan, hasPendingWrites() ? SelectionKey.OP_WRITE : 0);
             return () -> {
                 try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            protocol.process(nextMessage);
-                        }
+                    if (decode != null) {
+                        decode.run();
                     }
                 } finally {
-                    releaseBuffer(buf);
+                    inputProcessed = true;
+                    // continueWrite() disconnects once nothing is left to write, maybe right away.
+                    loop.updateInterestedOps(chan, SelectionKey.OP_WRITE);
                 }
             };
-        } else {
-            releaseBuffer(buf);
-            // J5: use disconnect() so the connection is removed from all maps, not just closed.
-            ConnectionsImpl<T> connections = ConnectionsImpl.getInstance();
-            connections.disconnect(connectionId);
-            return null;
         }
+        return decode;
     }
 
+    /**
+     * @return a task that decodes and releases the buffers of one read, or null if nothing was read
+     */
+    private Runnable decodeTask(List<ByteBuffer> batch, ByteBuffer single) {
+        if (batch != null) {
+            List<ByteBuffer> buffers = batch;
+            return () -> {
+                int i = 0;
+                try {
+                    for (; i < buffers.size(); i++) {
+                        encdec.decode(buffers.get(i), protocol::process);
+                        BufferPool.release(buffers.get(i));
+                    }
+                } finally {
+                    for (; i < buffers.size(); i++) {
+                        BufferPool.release(buffers.get(i));
+                    }
+                }
+            };
+        }
+        if (single != null) {
+            ByteBuffer buf = single;
+            return () -> {
+                try {
+                    encdec.decode(buf, protocol::process);
+                } finally {
+                    BufferPool.release(buf);
+                }
+            };
+        }
+        return null;
+    }
+
+    /**
+     * Closes the channel and tells the protocol, through the connection's mailbox so that it
+     * runs after any read task still queued for it.
+     */
     public void close() {
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        if (closed.compareAndSet(false, true)) {
+            loop.submit(mailbox, protocol::connectionClosed);
+        }
+    }
+
+    /*package*/ ActorThreadPool.Mailbox mailbox() {
+        return mailbox;
     }
 
     public boolean isClosed() {
@@ -120,60 +318,135 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     /**
      * Writes pending data from the write-queue to the socket channel.
      * <p>
-     * This method is called by the Reactor when the channel is ready for writing.
-     * It attempts to drain the queue. If the queue becomes empty, it un-registers
-     * the write interest (OP_WRITE).
+     * This method is called by the owning loop when the channel is ready for writing.
+     * Queued frames are coalesced: up to {@link #MAX_BUFFERS_PER_WRITE} buffers, or about
+     * {@link #MAX_BYTES_PER_WRITE} bytes, are handed to the kernel with one gathering
+     * {@code write(ByteBuffer[], off, len)} instead of one {@code write} per frame.
+     * Frames that were only partially written stay in flight and are resumed on the next
+     * OP_WRITE. If the queue becomes empty, it un-registers the write interest (OP_WRITE).
      */
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
+        while (!inFlight.isEmpty() || !writeQueue.isEmpty()) {
             try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
+                int count = gatherPending();
+                long written = chan.write(gatherBuffers, 0, count);
+                if (written > 0) {
+                    lastWriteNanos = loop.now();
+                    BYTES_WRITTEN.add(written);
+                }
+                WRITE_SYSCALLS.increment();
+                Arrays.fill(gatherBuffers, 0, count, null);
+
+                // Retire every frame that is now completely on the wire.
+                while (!inFlight.isEmpty() && inFlight.peek().isWritten()) {
+                    release(inFlight.remove());
+                    FLUSHED_FRAMES.increment();
+                }
+                if (paused && belowLowWater()) {
+                    paused = false;
+                }
+                if (!inFlight.isEmpty()) {
                     return; // Socket buffer is full, return and wait for next OP_WRITE trigger
-                } else {
-                    writeQueue.remove();
                 }
             } catch (IOException ex) {
                 ex.printStackTrace();
-                close();
+                // The peer is gone: remove it from Connections too, not just close the socket.
+                connections.disconnect(connectionId);
+                inFlight.clear();
                 writeQueue.clear();
+                // A pending conflation timer must not queue held frames for the dead peer.
+                synchronized (conflatable) {
+                    conflationHeld.clear();
+                    conflatable.clear();
+                }
+                queuedFrames.set(0);
+                queuedBytes.set(0);
             }
         }
 
         // If queue is empty, we stop listening for write events to save CPU cycles.
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) {
+        if (inFlight.isEmpty() && writeQueue.isEmpty()) {
+            if (protocol.shouldTerminate() || evicted.get() || inputProcessed) {
                 // J5: call disconnect() so that the connection is removed from the
                 //     activeConnections map and all channel subscriptions — not just
                 //     the raw socket closed.  disconnect() calls close() internally
                 //     (idempotent).
-                ConnectionsImpl<T> connections = ConnectionsImpl.getInstance();
                 connections.disconnect(connectionId);
             } else {
-                reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+                loop.updateInterestedOps(chan, readOps());
                 // Race guard: a send() may have added data while we switched ops.
                 if (!writeQueue.isEmpty()) {
-                    reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    loop.updateInterestedOps(chan, readOps() | SelectionKey.OP_WRITE);
                 }
             }
         }
     }
 
-    // --- Buffer Pool Helpers ---
+    /**
+     * Moves queued frames in flight until the write budget is reached and lays the buffers that
+     * still have bytes left out in {@link #gatherBuffers}. At least one frame is always taken.
+     *
+     * @return the number of buffers to pass to the gathering write
+     */
+    private int gatherPending() {
+        int count = 0;
+        long bytes = 0;
+        for (OutboundFrame frame : inFlight) {
+            for (ByteBuffer b : frame.buffers) {
+                if (b.hasRemaining()) {
+                    gatherBuffers = ensureGatherCapacity(count + 1);
+                    gatherBuffers[count++] = b;
+                    bytes += b.remaining();
+                }
+            }
+        }
 
-    private static ByteBuffer leaseBuffer() {
-        ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+        OutboundFrame next;
+        while ((count == 0 || (count < MAX_BUFFERS_PER_WRITE && bytes < MAX_BYTES_PER_WRITE))
+                && (next = writeQueue.poll()) != null) {
+            if (next.key != null) {
+                // From now on the frame is on its way and can no longer be replaced.
+                synchronized (conflatable) {
+                    conflatable.remove(next.key, next);
+                }
+            }
+            inFlight.add(next);
+            for (ByteBuffer b : next.buffers) {
+                gatherBuffers = ensureGatherCapacity(count + 1);
+                gatherBuffers[count++] = b;
+                bytes += b.remaining();
+            }
         }
+        return count;
+    }
 
-        buff.clear();
-        return buff;
+    /**
+     * @return OP_READ while the peer may still send, 0 once its side is closed
+     */
+    private int readOps() {
+        return inputEnded ? 0 : SelectionKey.OP_READ;
     }
 
-    private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
+    private boolean hasPendingWrites() {
+        return !inFlight.isEmpty() || !writeQueue.isEmpty();
+    }
+
+    private ByteBuffer[] ensureGatherCapacity(int size) {
+        return size <= gatherBuffers.length ? gatherBuffers : Arrays.copyOf(gatherBuffers, size * 2);
+    }
+
+    /**
+     * @return the number of frames queued for this connection and not fully written yet
+     */
+    public int queuedFrames() {
+        return queuedFrames.get();
+    }
+
+    /**
+     * @return the number of bytes queued for this connection and not fully written yet
+     */
+    public long queuedBytes() {
+        return queuedBytes.get();
     }
 
     /**
@@ -183,7 +456,7 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
      * Instead, it:
      * 1. Encodes the message.
      * 2. Queues the bytes.
-     * 3. Signals the Reactor to monitor the channel for "Ready to Write" events.
+     * 3. Signals the owning loop to monitor the channel for "Ready to Write" events.
      *
      * @param msg The message to send.
      */
@@ -194,15 +467,303 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
                 // 1. Encode the message to bytes
                 byte[] encodedMsg = encdec.encode(msg);
                 
-                // 2. Add to the write queue
-                writeQueue.add(ByteBuffer.wrap(encodedMsg));
-                
-                // 3. Update the Reactor that we are interested in writing (OP_WRITE)
-                reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                // 2. Add to the write queue and ask the owning loop for OP_WRITE
+                enqueue(new OutboundFrame(new ByteBuffer[] { ByteBuffer.wrap(encodedMsg) }, false));
                 
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Queues a broadcast frame without copying it: the header and the shared body are written
+     * straight from the given buffers with a single gathering write.
+     * <p>
+     * Broadcast frames are subject to the outbound high-water mark; once it is reached the
+     * configured {@link SlowConsumerPolicy} decides what happens to this subscriber.
+     *
+     * @param header     The per-subscriber header bytes.
+     * @param sharedBody This connection's own view of the shared encoded body.
+     */
+    @Override
+    public void sendShared(ByteBuffer header, ByteBuffer sharedBody) {
+        OutboundFrame frame = new OutboundFrame(new ByteBuffer[] { header, sharedBody }, true);
+        if (admit(frame)) {
+            enqueue(frame);
+        }
+    }
+
+    /**
+     * Queues a conflatable broadcast frame, or puts its buffers in place of those of the frame
+     * with the same key that is still waiting, which keeps its place in the queue. A frame the
+     * loop has taken is never touched, so a key's latest value always goes out.
+     * <p>
+     * With a conflation window, a frame whose key has nothing waiting is held back for the
+     * window before it is queued, so a burst of updates shrinks to its last value even on an
+     * idle connection. Frames without a key are never held back, and can overtake held ones.
+     *
+     * @param header     The per-subscriber header bytes.
+     * @param sharedBody This connection's own view of the shared encoded body.
+     * @param key        What the frame updates.
+     */
+    @Override
+    public void sendConflatable(ByteBuffer header, ByteBuffer sharedBody, Object key) {
+        OutboundFrame frame = new OutboundFrame(new ByteBuffer[] { header, sharedBody }, true, key);
+        synchronized (conflatable) {
+            OutboundFrame waiting = conflatable.get(key);
+            if (waiting != null) {
+                queuedBytes.addAndGet(frame.size - waiting.size);
+                waiting.buffers = frame.buffers;
+                waiting.size = frame.size;
+                CONFLATED_FRAMES.increment();
+                return;
+            }
+            if (!admit(frame) || evicted.get()) {
+                return;
+            }
+            conflatable.put(key, frame);
+            if (CONFLATE_WINDOW_NANOS > 0) {
+                // Counted as queued already, so the high-water mark sees held frames too.
+                queuedFrames.incrementAndGet();
+                queuedBytes.addAndGet(frame.size);
+                conflationHeld.add(frame);
+                if (conflationHeld.size() == 1) {
+                    loop.execute(() -> loop.schedule(conflationTimer, CONFLATE_WINDOW_NANOS));
+                }
+            } else {
+                push(frame);
+            }
+        }
+    }
+
+    /**
+     * Queues a frame that is already encoded in parts. Like {@link #send(Object)} it is a direct
+     * reply, never dropped by the slow-consumer policy; its parts go out with the same gathering
+     * write as the frames around it.
+     *
+     * @param parts The encoded frame, in order.
+     */
+    @Override
+    public void sendEncoded(ByteBuffer... parts) {
+        enqueue(new OutboundFrame(parts, false));
+    }
+
+    /**
+     * Arms the heart-beat timer of this connection on the owning loop's {@link TimerWheel}.
+     * The peer is given two of its intervals before it is considered dead.
+     */
+    @Override
+    public void startHeartbeat(long sendEveryMillis, long expectEveryMillis) {
+        if (sendEveryMillis <= 0 && expectEveryMillis <= 0) {
+            return;
+        }
+        loop.execute(() -> {
+            sendEveryNanos = sendEveryMillis * 1_000_000L;
+            readTimeoutNanos = expectEveryMillis * 2_000_000L;
+            lastReadNanos = lastWriteNanos = loop.now();
+            heartbeatTimer.expire(loop.now());
+        });
+    }
+
+    private void enqueue(OutboundFrame frame) {
+        if (evicted.get()) {
+            return; // Only the ERROR frame goes out to an evicted client
+        }
+        push(frame);
+    }
+
+    private void push(OutboundFrame frame) {
+        queuedFrames.incrementAndGet();
+        queuedBytes.addAndGet(frame.size);
+        writeQueue.add(frame);
+
+        // Update the owning loop that we are interested in writing (OP_WRITE)
+        loop.updateInterestedOps(chan, readOps() | SelectionKey.OP_WRITE);
+    }
+
+    private void release(OutboundFrame frame) {
+        queuedFrames.decrementAndGet();
+        queuedBytes.addAndGet(-frame.size);
+    }
+
+    /**
+     * Applies the slow-consumer policy to a broadcast frame.
+     * The limits are soft: concurrent broadcasters may overshoot them by a few frames.
+     *
+     * @return true if the frame should be queued
+     */
+    private boolean admit(OutboundFrame frame) {
+        if (paused) {
+            DROPPED_FRAMES.increment();
+            return false;
+        }
+        if (!overHighWater(frame.size)) {
+            return true;
+        }
+        switch (POLICY) {
+            case DROP_OLDEST:
+                dropOldest(frame.size);
+                return true;
+            case PAUSE:
+                paused = true;
+                DROPPED_FRAMES.increment();
+                return false;
+            default:
+                evict();
+                return false;
+        }
+    }
+
+    /**
+     * Removes the oldest broadcast frames that are still waiting (not in flight) until the new
+     * frame fits. Direct replies such as RECEIPT are never dropped.
+     */
+    private void dropOldest(long incoming) {
+        Iterator<OutboundFrame> it = writeQueue.iterator();
+        while (overHighWater(incoming) && it.hasNext()) {
+            OutboundFrame oldest = it.next();
+            // remove(Object) only succeeds if the loop has not taken the frame in the meantime.
+            if (oldest.fanOut && remove(oldest)) {
+                release(oldest);
+                DROPPED_FRAMES.increment();
+            }
+        }
+    }
+
+    /**
+     * Takes a frame out of the write-queue, unless the loop has taken it in the meantime.
+     * A conflatable frame leaves the conflation table in the same step, so no newer value can
+     * be put into a frame that will never be written.
+     */
+    private boolean remove(OutboundFrame frame) {
+        if (frame.key == null) {
+            return writeQueue.remove(frame);
+        }
+        synchronized (conflatable) {
+            return writeQueue.remove(frame) && conflatable.remove(frame.key, frame);
+        }
+    }
+
+    /**
+     * Drops everything still waiting, queues an ERROR frame and lets {@link #continueWrite()}
+     * disconnect the client once the frame is flushed.
+     */
+    private void evict() {
+        if (!evicted.compareAndSet(false, true)) {
+            return;
+        }
+        SLOW_CONSUMER_EVICTIONS.increment();
+        OutboundFrame dropped;
+        while ((dropped = writeQueue.poll()) != null) {
+            release(dropped);
+        }
+        synchronized (conflatable) {
+            for (OutboundFrame held : conflationHeld) {
+                release(held);
+            }
+            conflationHeld.clear();
+            conflatable.clear();
+        }
+        push(new OutboundFrame(new ByteBuffer[] { ByteBuffer.wrap(SLOW_CONSUMER_ERROR) }, false));
+    }
+
+    private boolean overHighWater(long incoming) {
+        int frames = queuedFrames.get();
+        // A single frame larger than the byte limit is still let through an empty queue.
+        return frames > 0 && (frames >= MAX_QUEUED_FRAMES || queuedBytes.get() + incoming > MAX_QUEUED_BYTES);
+    }
+
+    private boolean belowLowWater() {
+        return queuedFrames.get() <= MAX_QUEUED_FRAMES / 2 && queuedBytes.get() <= MAX_QUEUED_BYTES / 2;
+    }
+
+    /**
+     * The heart-beat timer of this connection. Each expiry checks both directions against the
+     * last read and write times and re-arms the timer for the earlier of the two next deadlines,
+     * so reads and writes themselves never touch the wheel.
+     */
+    private final class HeartbeatTimer extends TimerWheel.Timer {
+        @Override
+        void expire(long now) {
+            if (isClosed()) {
+                // Closed elsewhere: make sure it is gone from Connections too, and stop.
+                connections.disconnect(connectionId);
+                return;
+            }
+            if (readTimeoutNanos > 0 && now - lastReadNanos >= readTimeoutNanos) {
+                IDLE_DISCONNECTS.increment();
+                connections.disconnect(connectionId);
+                return;
+            }
+
+            long next = Long.MAX_VALUE;
+            if (sendEveryNanos > 0) {
+                if (!inFlight.isEmpty() || !writeQueue.isEmpty()) {
+                    // Frames are on their way; they will do as heart-beats once written.
+                    next = now + sendEveryNanos;
+                } else if (now - lastWriteNanos >= sendEveryNanos) {
+                    sendEncoded(HEARTBEAT.duplicate());
+                    HEARTBEATS_SENT.increment();
+                    lastWriteNanos = now;
+                    next = now + sendEveryNanos;
+                } else {
+                    next = lastWriteNanos + sendEveryNanos;
+                }
+            }
+            if (readTimeoutNanos > 0) {
+                next = Math.min(next, lastReadNanos + readTimeoutNanos);
+            }
+            loop.schedule(this, next - now);
+        }
+    }
+
+    /**
+     * Queues the frames held back for the conflation window. They stay in the conflation table
+     * until the loop takes them, so they can still be replaced while they wait in the queue.
+     */
+    private final class ConflationTimer extends TimerWheel.Timer {
+        @Override
+        void expire(long now) {
+            synchronized (conflatable) {
+                writeQueue.addAll(conflationHeld);
+                conflationHeld.clear();
+            }
+            loop.updateInterestedOps(chan, readOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * The buffers of one frame in the write-queue, with the bookkeeping needed by the
+     * slow-consumer policy and by conflation.
+     */
+    private static final class OutboundFrame {
+        // Only replaced for a conflatable frame, under the conflation table's monitor, until
+        // the loop takes it.
+        ByteBuffer[] buffers;
+        long size;
+        // True for broadcast MESSAGE frames, the only ones a slow-consumer policy may drop.
+        final boolean fanOut;
+        // The conflation key, null if the frame must be delivered as is.
+        final Object key;
+
+        OutboundFrame(ByteBuffer[] buffers, boolean fanOut) {
+            this(buffers, fanOut, null);
+        }
+
+        OutboundFrame(ByteBuffer[] buffers, boolean fanOut, Object key) {
+            this.buffers = buffers;
+            this.fanOut = fanOut;
+            this.key = key;
+            long bytes = 0;
+            for (ByteBuffer b : buffers) {
+                bytes += b.remaining();
+            }
+            this.size = bytes;
+        }
+
+        boolean isWritten() {
+            return !buffers[buffers.length - 1].hasRemaining();
+        }
+    }
+}
@@ -4,180 +4,262 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Supplier;
 
 /**
  * An implementation of the Reactor pattern for non-blocking server architecture.
  * <p>
- * The Reactor waits for I/O events (Accept, Read, Write) on multiple channels using a single thread (the selector thread).
- * When an event occurs:
- * 1. **Accept**: Creates a new connection handler.
- * 2. **Read**: Delegates the reading and processing task to a thread pool (ActorThreadPool).
- * 3. **Write**: Performs the writing immediately (as it is usually fast and non-blocking).
+ * The Reactor is split into one acceptor and a configurable number of {@link SelectorLoop}s:
+ * 1. **Accept**: The acceptor (the thread calling {@link #serve()}) accepts new sockets, creates a
+ *    connection handler and pins the channel to one I/O loop (round-robin).
+ * 2. **Read**: The owning loop reads the data and delegates the processing task to a thread pool (ActorThreadPool).
+ * 3. **Write**: The owning loop performs the writing immediately (as it is usually fast and non-blocking).
+ * <p>
+ * With a single loop this behaves like the classic single-selector Reactor; more loops spread the
+ * selector work of many sockets over several cores.
+ * <p>
+ * With {@code -Dstomp.reactor.reusePort=true} (Linux) there is no separate acceptor: every loop
+ * binds its own listening channel to the port with {@code SO_REUSEPORT}, the kernel spreads
+ * incoming connections over the listeners, and each loop keeps the connections it accepted.
+ * All loops still share the server's one {@link ConnectionsImpl}.
  *
  * @param <T> The type of message (e.g., String).
  */
 public class Reactor<T> implements Server<T> {
 
+    // One listening channel per loop, bound with SO_REUSEPORT, instead of a single acceptor.
+    private static final boolean REUSE_PORT = Boolean.getBoolean("stomp.reactor.reusePort");
+    // Accept queue length of each listening channel (the JDK default of 50 overflows in a login storm).
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("stomp.reactor.backlog", 1024);
+
     private final int port;
     private final Supplier<StompMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
+    private final ConnectionsImpl<T> connections;
     private final ActorThreadPool pool;
+    private final int numLoops;
     private Selector selector;
 
-    private Thread selectorThread;
-    
-    // Tasks that need to be run by the selector thread (e.g., changing interestOps)
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private SelectorLoop<T>[] loops;
+    private int nextLoop = 0;
+    // SO_REUSEPORT mode: the listening channels and the threads running the loops.
+    private final List<ServerSocketChannel> listeners = new ArrayList<>();
+    private final List<Thread> loopThreads = new ArrayList<>();
+
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, 1, port, protocolFactory, readerFactory);
+    }
+
+    public Reactor(
+            int numThreads,
+            int numLoops,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, numLoops, port, new ConnectionsImpl<>(true), protocolFactory, readerFactory);
+    }
 
     public Reactor(
             int numThreads,
+            int numLoops,
             int port,
+            ConnectionsImpl<T> connections,
             Supplier<StompMessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
 
+        if (numLoops < 1) {
+            throw new IllegalArgumentException("A reactor needs at least one selector loop, got " + numLoops);
+        }
         this.pool = new ActorThreadPool(numThreads);
+        this.numLoops = numLoops;
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
+        this.connections = connections;
     }
 
     /**
      * Main Reactor loop.
      * <p>
-     * 1. Opens the Selector and ServerSocket.
-     * 2. Registers the ServerSocket for OP_ACCEPT.
+     * 1. Starts the I/O loops, each on its own thread.
+     * 2. Opens the acceptor Selector and ServerSocket, and registers the ServerSocket for OP_ACCEPT.
      * 3. Enters the infinite loop:
-     * a. Waits for events (selector.select()).
-     * b. Executes pending tasks (like updating interest ops).
-     * c. Iterates over keys with ready events and dispatches them (handleAccept / handleReadWrite).
+     * a. Waits for incoming connections (selector.select()).
+     * b. Accepts them and hands each one to the next I/O loop (handleAccept).
+     * <p>
+     * In SO_REUSEPORT mode, steps 2-3 are replaced by {@link #serveReusePort()}.
      */
     @Override
     public void serve() {
-        selectorThread = Thread.currentThread();
+        try {
+            loops = newLoops(numLoops);
+            for (int i = 0; i < numLoops; i++) {
+                loops[i] = new SelectorLoop<>(i, pool);
+                Thread thread = new Thread(loops[i], loops[i].name());
+                loopThreads.add(thread);
+                thread.start();
+            }
+
+            if (REUSE_PORT && supportsReusePort()) {
+                serveReusePort();
+            } else {
+                if (REUSE_PORT) {
+                    System.err.println("SO_REUSEPORT is not supported here, using a single acceptor");
+                }
+                serveSingleAcceptor();
+            }
+        } catch (ClosedSelectorException ex) {
+            // Normal shutdown behavior
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+
+        closeLoops();
+        System.out.println("server closed!!!");
+        pool.shutdown();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> SelectorLoop<T>[] newLoops(int count) {
+        return (SelectorLoop<T>[]) new SelectorLoop<?>[count];
+    }
+
+    private void serveSingleAcceptor() throws IOException {
         try (Selector selector = Selector.open();
                 ServerSocketChannel serverSock = ServerSocketChannel.open()) {
 
             this.selector = selector; // Save reference for closing later
 
-            serverSock.bind(new InetSocketAddress(port));
+            serverSock.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
             serverSock.configureBlocking(false); // Must be non-blocking for Selector
             serverSock.register(selector, SelectionKey.OP_ACCEPT);
             System.out.println("Server started");
 
             while (!Thread.currentThread().isInterrupted()) {
 
-                // Blocks until at least one channel is ready or wakeup() is called
+                // Blocks until a client is waiting to be accepted or wakeup() is called
                 selector.select();
-                
-                // Run internal tasks (e.g., updates from worker threads)
-                runSelectionThreadTasks();
 
-                // Iterate over ready channels
                 for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
+                    if (key.isValid() && key.isAcceptable()) {
+                        handleAccept(serverSock, null);
                     }
                 }
 
                 selector.selectedKeys().clear(); // Must manually clear handled keys
             }
-
-        } catch (ClosedSelectorException ex) {
-            // Normal shutdown behavior
-        } catch (IOException ex) {
-            ex.printStackTrace();
         }
-
-        System.out.println("server closed!!!");
-        pool.shutdown();
     }
 
     /**
-     * Updates the operations a channel is interested in (Read/Write).
-     * <p>
-     * <b>Thread Safety:</b> This method can be called from any thread (e.g., a worker thread wanting to write).
-     * However, the Selector logic is strictly single-threaded. Therefore:
-     * - If called from the selector thread, update immediately.
-     * - If called from another thread, queue a task and wake up the selector.
-     *
-     * @param chan The channel to update.
-     * @param ops  The new operation set (e.g., OP_READ | OP_WRITE).
+     * Binds one SO_REUSEPORT listener per loop and lets every loop accept on its own.
+     * The serving thread just waits for the loops to stop (see {@link #close()}).
      */
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                if (key.isValid()) {
-                    key.interestOps(ops);
+    private void serveReusePort() throws IOException {
+        for (SelectorLoop<T> loop : loops) {
+            ServerSocketChannel listener = ServerSocketChannel.open();
+            listeners.add(listener);
+            listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            listener.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            listener.configureBlocking(false);
+            loop.listen(listener, () -> {
+                try {
+                    handleAccept(listener, loop);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
                 }
             });
-            selector.wakeup();
+        }
+        System.out.println("Server started");
+
+        for (Thread thread : loopThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 
-    /**
-     * Handles a new client connection.
-     * Accepts the socket, sets it to non-blocking, creates a handler, and registers it for READ events.
-     */
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
-        SocketChannel clientChan = serverChan.accept();
-        clientChan.configureBlocking(false);
-        final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
-                readerFactory.get(),
-                protocolFactory.get(),
-                clientChan,
-                this);
-        // Note: We attach the handler to the key to retrieve it later
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+    private static boolean supportsReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException ex) {
+            return false;
+        }
     }
 
     /**
-     * Handles READ and WRITE events for an existing connection.
+     * Handles new client connections.
+     * Accepts every pending socket, sets it to non-blocking, creates a handler bound to an I/O
+     * loop, and lets that loop register it for READ events. Draining the whole accept queue on
+     * one wakeup keeps it short during a connection storm.
+     *
+     * @param serverChan The listening channel that became acceptable.
+     * @param owner      The loop that accepted (SO_REUSEPORT mode) and keeps the connections,
+     *                   or {@code null} to spread them round-robin over all loops.
      */
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
-
-        if (key.isReadable()) {
-            // Read data. If successful, we get a Runnable task to process the data.
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                // Submit the processing task to the thread pool (Reactor pattern)
-                pool.submit(handler, task);
+    private void handleAccept(ServerSocketChannel serverChan, SelectorLoop<T> owner) throws IOException {
+        SocketChannel clientChan;
+        while ((clientChan = serverChan.accept()) != null) {
+            clientChan.configureBlocking(false);
+
+            SelectorLoop<T> loop = owner;
+            if (loop == null) {
+                loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
             }
-        }
 
-        if (key.isValid() && key.isWritable()) {
-            // Write pending data to the socket
-            handler.continueWrite();
+            final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
+                    readerFactory.get(),
+                    protocolFactory.get(),
+                    clientChan,
+                    loop,
+                    connections);
+            loop.register(clientChan, handler);
         }
     }
 
-    /**
-     * Executes internal tasks queued by other threads.
-     */
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
+    private void closeLoops() {
+        if (loops == null) {
+            return;
+        }
+        for (SelectorLoop<T> loop : loops) {
+            if (loop != null) {
+                try {
+                    loop.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
         }
     }
 
     @Override
     public void close() throws IOException {
-        selector.close();
+        if (selector != null) {
+            selector.close();
+        }
+        closeLoops();
     }
-}
\ No newline at end of file
+}
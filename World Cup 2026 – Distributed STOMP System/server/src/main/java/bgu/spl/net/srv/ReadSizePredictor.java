@@ -0,0 +1,50 @@
+package bgu.spl.net.srv;
+
+/**
+ * Guesses how large the next read buffer of a connection should be, from the reads it has seen.
+ * <p>
+ * A read that fills its buffer means more data is waiting, so the next buffer is twice as large
+ * right away. Shrinking is slower: only two reads in a row that use less than a quarter of
+ * their buffer halve it, so a single short frame in a stream does not undo the growth.
+ * Sizes stay within the {@link BufferPool} classes.
+ * <p>
+ * Not thread-safe; each instance belongs to the loop that reads its connection.
+ */
+final class ReadSizePredictor {
+
+    private int size;
+    private boolean shrinkPending = false;
+
+    ReadSizePredictor(int initialSize) {
+        this.size = Math.max(BufferPool.MIN_SIZE, Math.min(initialSize, BufferPool.MAX_SIZE));
+    }
+
+    /**
+     * @return the capacity to lease for the next read
+     */
+    int nextSize() {
+        return size;
+    }
+
+    /**
+     * Feeds the outcome of a read back into the prediction.
+     *
+     * @param bytesRead the number of bytes the read returned
+     * @param capacity  the capacity of the buffer it read into
+     */
+    void record(int bytesRead, int capacity) {
+        if (bytesRead >= capacity) {
+            size = Math.min(capacity * 2, BufferPool.MAX_SIZE);
+            shrinkPending = false;
+        } else if (bytesRead < capacity / 4) {
+            if (shrinkPending) {
+                size = Math.max(capacity / 2, BufferPool.MIN_SIZE);
+                shrinkPending = false;
+            } else {
+                shrinkPending = true;
+            }
+        } else {
+            shrinkPending = false;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single I/O loop of the {@link Reactor}.
+ * <p>
+ * Every loop owns its own {@link Selector} and runs on its own thread. A {@link SocketChannel}
+ * accepted by the Reactor is pinned to exactly one loop for its whole lifetime, so all reads,
+ * writes and interest-op changes of that channel happen on the same thread.
+ * Other threads talk to the loop only through its task queue ({@link #execute(Runnable)}).
+ * In SO_REUSEPORT mode the loop also owns a listening channel and accepts on it itself.
+ * <p>
+ * Each loop also drives a {@link TimerWheel} for the heart-beat timers of its channels. While a
+ * timer is pending the selector waits at most until the next tick of the wheel.
+ *
+ * @param <T> The type of message (e.g., String).
+ */
+class SelectorLoop<T> implements Runnable {
+
+    // Resolution and size of the heart-beat timer wheel: 512 slots of 100 ms cover ~51 s per turn.
+    private static final long TICK_NANOS = Long.getLong("stomp.heartbeat.tickMillis", 100) * 1_000_000L;
+    private static final int WHEEL_SLOTS = 512;
+
+    // Returns from select(), whatever woke the loop: I/O, a task, a timer tick.
+    private static final Metrics.Counter WAKEUPS = Metrics.counter("reactor.selector.wakeups");
+
+    private final int index;
+    private final ActorThreadPool pool;
+    private final Selector selector;
+    private volatile Thread loopThread;
+
+    // Tasks that need to be run by this loop's thread (e.g., registering a channel, changing interestOps)
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final TimerWheel timers = new TimerWheel(TICK_NANOS, WHEEL_SLOTS, System.nanoTime());
+    // System.nanoTime() as of the last wakeup; read by the handlers on this loop's thread.
+    private long now = System.nanoTime();
+
+    SelectorLoop(int index, ActorThreadPool pool) throws IOException {
+        this.index = index;
+        this.pool = pool;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * The loop body: waits for READ/WRITE readiness on the channels pinned to this loop
+     * and dispatches them, running queued tasks between selections and due timers after them.
+     */
+    @Override
+    public void run() {
+        loopThread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+
+                // Blocks until at least one channel is ready, wakeup() is called or the next
+                // timer tick is due (0 = no timers, block indefinitely)
+                selector.select(timers.millisToNextTick(System.nanoTime()));
+                now = System.nanoTime();
+                WAKEUPS.increment();
+
+                // Run internal tasks (e.g., registrations and updates from worker threads)
+                runTasks();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        ((Runnable) key.attachment()).run();
+                    } else {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); // Must manually clear handled keys
+
+                // Timers run after the I/O of this wakeup, so data that just arrived counts
+                timers.advance(now);
+            }
+        } catch (ClosedSelectorException ex) {
+            // Normal shutdown behavior
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Pins a freshly accepted channel to this loop.
+     * <p>
+     * The channel is registered for both READ and WRITE: a broadcast may already have queued
+     * data for the handler between its construction and this registration. The first
+     * {@link NonBlockingConnectionHandler#continueWrite()} drops OP_WRITE again if nothing is pending.
+     */
+    void register(SocketChannel chan, NonBlockingConnectionHandler<T> handler) {
+        execute(() -> {
+            try {
+                chan.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, handler);
+            } catch (ClosedChannelException ex) {
+                // Peer closed before we got to register it; the handler cleans up on its own.
+            }
+        });
+    }
+
+    /**
+     * Registers a listening channel with this loop for OP_ACCEPT.
+     *
+     * @param listener The non-blocking listening channel.
+     * @param onAccept Run on this loop's thread whenever the listener has connections to accept.
+     */
+    void listen(ServerSocketChannel listener, Runnable onAccept) {
+        execute(() -> {
+            try {
+                listener.register(selector, SelectionKey.OP_ACCEPT, onAccept);
+            } catch (ClosedChannelException ex) {
+                // The server is shutting down
+            }
+        });
+    }
+
+    /**
+     * Updates the operations a channel is interested in (Read/Write).
+     * <p>
+     * <b>Thread Safety:</b> This method can be called from any thread (e.g., a worker thread wanting to write).
+     * However, the Selector logic is strictly single-threaded. Therefore:
+     * - If called from this loop's thread, update immediately.
+     * - If called from another thread, queue a task on this loop and wake up its selector.
+     *
+     * @param chan The channel to update (must be pinned to this loop).
+     * @param ops  The new operation set (e.g., OP_READ | OP_WRITE).
+     */
+    void updateInterestedOps(SocketChannel chan, int ops) {
+        if (Thread.currentThread() == loopThread) {
+            SelectionKey key = chan.keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(ops);
+            }
+        } else {
+            execute(() -> {
+                // The key is looked up here: the channel may not have been registered yet
+                // when the update was requested.
+                SelectionKey key = chan.keyFor(selector);
+                if (key != null && key.isValid()) {
+                    key.interestOps(ops);
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues a task to run on this loop's thread and wakes the selector up.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Queues a task for an actor of this loop's thread pool.
+     */
+    void submit(ActorThreadPool.Mailbox actor, Runnable task) {
+        pool.submit(actor, task);
+    }
+
+    /**
+     * Arms a timer on this loop's wheel. Must be called on this loop's thread.
+     */
+    void schedule(TimerWheel.Timer timer, long delayNanos) {
+        timers.schedule(timer, delayNanos, now);
+    }
+
+    /**
+     * @return {@link System#nanoTime()} as of this loop's last wakeup. Only meaningful on this
+     *         loop's thread.
+     */
+    long now() {
+        return now;
+    }
+
+    /**
+     * Handles READ and WRITE events for an existing connection.
+     */
+    private void handleReadWrite(SelectionKey key) {
+        @SuppressWarnings("unchecked")
+        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+
+        if (key.isReadable()) {
+            // Read data. If successful, we get a Runnable task to process the data.
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                // Submit the processing task to the thread pool (Reactor pattern)
+                pool.submit(handler.mailbox(), task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            // Write pending data to the socket
+            handler.continueWrite();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    String name() {
+        return "reactor-loop-" + index;
+    }
+
+    void close() throws IOException {
+        selector.close();
+    }
+}
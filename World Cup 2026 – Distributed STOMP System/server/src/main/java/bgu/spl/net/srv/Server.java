@@ -34,6 +34,29 @@ public interface Server<T> extends Closeable {
 
     }
 
+    /**
+     *This function returns a new instance of a thread per client pattern server that runs
+     *every client on its own virtual thread
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new virtual thread per client server
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T> handler) {
+                Thread.ofVirtual().start(handler);
+            }
+        };
+
+    }
+
     /**
      * This function returns a new instance of a reactor pattern server
      * @param nthreads Number of threads available for protocol processing
@@ -51,4 +74,95 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
     }
 
+    /**
+     * This function returns a new instance of a reactor pattern server with several selector loops
+     * @param nthreads Number of threads available for protocol processing
+     * @param nloops Number of selector loops sharing the accepted connections
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int nloops,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new Reactor<T>(nthreads, nloops, port, protocolFactory, encoderDecoderFactory);
+    }
+
+    /**
+     * This function returns a new instance of a thread per client pattern server whose clients
+     * are registered with the given Connections
+     * @param port The port for the server socket
+     * @param connections The Connections shared by the clients of this server
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new Thread per client server
+     */
+    public static <T> Server<T> threadPerClient(
+            int port,
+            ConnectionsImpl<T> connections,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+
+        return new BaseServer<T>(port, connections, protocolFactory, encoderDecoderFactory) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T> handler) {
+                new Thread(handler).start();
+            }
+        };
+
+    }
+
+    /**
+     * This function returns a new instance of a virtual thread per client pattern server whose
+     * clients are registered with the given Connections
+     * @param port The port for the server socket
+     * @param connections The Connections shared by the clients of this server
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new virtual thread per client server
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int port,
+            ConnectionsImpl<T> connections,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+
+        return new BaseServer<T>(port, connections, protocolFactory, encoderDecoderFactory) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T> handler) {
+                Thread.ofVirtual().start(handler);
+            }
+        };
+
+    }
+
+    /**
+     * This function returns a new instance of a reactor pattern server whose clients are
+     * registered with the given Connections
+     * @param nthreads Number of threads available for protocol processing
+     * @param nloops Number of selector loops sharing the accepted connections
+     * @param port The port for the server socket
+     * @param connections The Connections shared by the clients of this server
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int nloops,
+            int port,
+            ConnectionsImpl<T> connections,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new Reactor<T>(nthreads, nloops, port, connections, protocolFactory, encoderDecoderFactory);
+    }
+
 }
@@ -0,0 +1,20 @@
+package bgu.spl.net.srv;
+
+/**
+ * What a {@link NonBlockingConnectionHandler} does with broadcast frames once its outbound
+ * queue reaches the high-water mark ({@code stomp.outbound.maxBytes} / {@code stomp.outbound.maxFrames}).
+ * <p>
+ * Only fan-out MESSAGE frames are subject to the policy. Direct replies to the client
+ * (CONNECTED, RECEIPT, ERROR) are always queued.
+ */
+public enum SlowConsumerPolicy {
+
+    /** Discard the oldest frames that are still waiting in the queue to make room for the new one. */
+    DROP_OLDEST,
+
+    /** Drop everything still queued, send an ERROR frame and close the connection. */
+    DISCONNECT,
+
+    /** Skip broadcast frames for this subscriber until its queue drains below half the high-water mark. */
+    PAUSE
+}
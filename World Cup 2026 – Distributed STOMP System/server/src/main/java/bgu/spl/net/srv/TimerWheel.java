@@ -0,0 +1,116 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayDeque;
+
+/**
+ * A hashed timer wheel, driven by one {@link SelectorLoop}.
+ * <p>
+ * Time is cut into ticks and every timer sits in the slot of the tick it is due in, modulo the
+ * number of slots. Scheduling is an append to one slot, so arming the heart-beat timer of a
+ * connection costs the same with ten or with a hundred thousand connections. On every tick the
+ * loop visits a single slot: timers that are due run, timers that belong to a later turn of the
+ * wheel stay where they are. Cancelling is lazy: an owner whose timer is no longer needed simply
+ * does not reschedule it when it fires.
+ * <p>
+ * Not thread-safe; only the owning loop's thread may touch the wheel and its timers.
+ */
+final class TimerWheel {
+
+    /**
+     * A reusable timer. A timer is in the wheel at most once; scheduling one that is already
+     * pending is ignored (its owner re-evaluates its deadline when it fires anyway).
+     */
+    abstract static class Timer {
+        private long deadlineTick;
+        private boolean pending = false;
+
+        /**
+         * Runs on the loop's thread once the timer is due. May reschedule the timer.
+         *
+         * @param nowNanos the loop's current {@link System#nanoTime()}
+         */
+        abstract void expire(long nowNanos);
+    }
+
+    private final long tickNanos;
+    private final ArrayDeque<Timer>[] slots;
+    private final int mask;
+    // The last tick whose slot has been visited.
+    private long currentTick;
+    private int pending = 0;
+
+    /**
+     * @param tickNanos  the resolution of the wheel
+     * @param slotCount  the number of slots, rounded up to a power of two
+     * @param nowNanos   the current {@link System#nanoTime()}
+     */
+    TimerWheel(long tickNanos, int slotCount, long nowNanos) {
+        int size = Integer.highestOneBit(Math.max(slotCount - 1, 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.slots = newSlots(size);
+        this.mask = size - 1;
+        this.currentTick = Math.floorDiv(nowNanos, tickNanos);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<Timer>[] newSlots(int count) {
+        ArrayDeque<Timer>[] slots = (ArrayDeque<Timer>[]) new ArrayDeque<?>[count];
+        for (int i = 0; i < count; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        return slots;
+    }
+
+    /**
+     * Arms a timer to fire after {@code delayNanos}, rounded up to whole ticks (at least one).
+     */
+    void schedule(Timer timer, long delayNanos, long nowNanos) {
+        if (timer.pending) {
+            return;
+        }
+        long ticks = Math.max(1, (delayNanos + tickNanos - 1) / tickNanos);
+        timer.deadlineTick = Math.max(currentTick, Math.floorDiv(nowNanos, tickNanos)) + ticks;
+        timer.pending = true;
+        slots[(int) (timer.deadlineTick & mask)].add(timer);
+        pending++;
+    }
+
+    /**
+     * Runs every timer that is due by {@code nowNanos}.
+     */
+    void advance(long nowNanos) {
+        long nowTick = Math.floorDiv(nowNanos, tickNanos);
+        if (nowTick <= currentTick) {
+            return;
+        }
+        // After a stall of more than one turn, a single visit of every slot is enough.
+        long from = Math.max(currentTick + 1, nowTick - mask);
+        currentTick = nowTick;
+        for (long tick = from; tick <= nowTick && pending > 0; tick++) {
+            ArrayDeque<Timer> slot = slots[(int) (tick & mask)];
+            // Timers rescheduled by expire() into this slot are appended, and not visited again now.
+            for (int n = slot.size(); n > 0; n--) {
+                Timer timer = slot.poll();
+                if (timer.deadlineTick <= nowTick) {
+                    timer.pending = false;
+                    pending--;
+                    timer.expire(nowNanos);
+                } else {
+                    slot.add(timer);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how long the loop may block before the next tick is due, in milliseconds
+     *         (at least 1), or 0 if no timer is pending and the loop may block indefinitely
+     */
+    long millisToNextTick(long nowNanos) {
+        if (pending == 0) {
+            return 0;
+        }
+        long nanos = (currentTick + 1) * tickNanos - nowNanos;
+        return Math.max(1, (nanos + 999_999) / 1_000_000);
+    }
+}
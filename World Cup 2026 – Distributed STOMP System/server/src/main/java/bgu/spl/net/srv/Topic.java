@@ -0,0 +1,178 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The subscribers of one channel, kept as an immutable snapshot array.
+ * <p>
+ * Publishing is far more frequent than subscribing on game channels, so the array is
+ * copied on every change and swapped in with a single volatile write. A broadcast reads the
+ * current snapshot once and walks it as a plain array: no hashing, no boxing and no second
+ * lookup of the handler.
+ * <p>
+ * Once a topic grows past its fan-out threshold it also keeps its subscribers split into lanes,
+ * by connection id, so a broadcast can be delivered by several threads at once (see
+ * {@link ConnectionsImpl#broadcast}). A subscriber always lands in the same lane, and a topic
+ * that has gone parallel stays parallel, so each subscriber keeps getting its frames in order.
+ * <p>
+ * Changes must be serialised by the caller; {@link ConnectionsImpl} only calls
+ * {@link #add} and {@link #remove} from inside {@code compute} on the channel's map entry.
+ *
+ * @param <T> The type of message (e.g., String).
+ */
+final class Topic<T> {
+
+    /**
+     * One subscription: the receiving handler and its pre-encoded
+     * {@code "MESSAGE\nsubscription:<id>\n"} header, as a read-only buffer.
+     */
+    static final class Subscriber<T> {
+        final int connectionId;
+        final ConnectionHandler<T> handler;
+        final ByteBuffer header;
+
+        Subscriber(int connectionId, ConnectionHandler<T> handler, ByteBuffer header) {
+            this.connectionId = connectionId;
+            this.handler = handler;
+            this.header = header;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final Subscriber[] NONE = new Subscriber[0];
+
+    @SuppressWarnings("unchecked")
+    private volatile Subscriber<T>[] subscribers = NONE;
+    // The same subscribers split by lane; null until the topic first exceeds the threshold.
+    private volatile Subscriber<T>[][] lanes = null;
+
+    private final int fanOutThreshold;
+    private final int laneCount;
+    // Set once the topic has been split into lanes; it then stays split.
+    private boolean parallel = false;
+
+    /**
+     * @param fanOutThreshold subscriber count above which the topic is split into lanes
+     * @param laneCount       number of lanes to split into
+     */
+    Topic(int fanOutThreshold, int laneCount) {
+        this.fanOutThreshold = fanOutThreshold;
+        this.laneCount = laneCount;
+    }
+
+    /**
+     * Creates a topic holding the given subscribers, e.g. the wildcard matches of a destination.
+     *
+     * @param parallel true to split it into lanes whatever its size
+     */
+    static <T> Topic<T> of(Subscriber<T>[] subscribers, int fanOutThreshold, int laneCount, boolean parallel) {
+        Topic<T> topic = new Topic<>(fanOutThreshold, laneCount);
+        topic.parallel = parallel;
+        topic.update(subscribers);
+        return topic;
+    }
+
+    /**
+     * @return the current subscribers; the array must not be modified
+     */
+    Subscriber<T>[] subscribers() {
+        return subscribers;
+    }
+
+    /**
+     * @return the subscribers split into lanes (lane {@code i} holds the connections whose
+     *         id is {@code i} modulo the lane count), or {@code null} if the topic has never
+     *         been large enough; the arrays must not be modified
+     */
+    Subscriber<T>[][] lanes() {
+        return lanes;
+    }
+
+    /**
+     * Adds a subscription, replacing an existing one of the same connection.
+     */
+    void add(Subscriber<T> subscriber) {
+        Subscriber<T>[] current = subscribers;
+        int index = indexOf(current, subscriber.connectionId);
+        Subscriber<T>[] next;
+        if (index >= 0) {
+            next = current.clone();
+        } else {
+            next = Arrays.copyOf(current, current.length + 1);
+            index = current.length;
+        }
+        next[index] = subscriber;
+        update(next);
+    }
+
+    /**
+     * Removes the subscription of a connection, if it has one.
+     *
+     * @return true if the topic has no subscribers left
+     */
+    @SuppressWarnings("unchecked")
+    boolean remove(int connectionId) {
+        Subscriber<T>[] current = subscribers;
+        int index = indexOf(current, connectionId);
+        if (index >= 0) {
+            if (current.length == 1) {
+                update(NONE);
+            } else {
+                Subscriber<T>[] next = Arrays.copyOf(current, current.length - 1);
+                if (index < next.length) {
+                    next[index] = current[current.length - 1]; // Delivery order is not significant
+                }
+                update(next);
+            }
+        }
+        return subscribers.length == 0;
+    }
+
+    /**
+     * Publishes a new subscriber array, and its lanes once the topic is (or was) large enough.
+     */
+    private void update(Subscriber<T>[] next) {
+        if (parallel || next.length > fanOutThreshold) {
+            parallel = true;
+            int[] sizes = new int[laneCount];
+            for (Subscriber<T> s : next) {
+                sizes[lane(s)]++;
+            }
+            Subscriber<T>[][] split = newLanes(laneCount);
+            for (int i = 0; i < laneCount; i++) {
+                split[i] = newArray(sizes[i]);
+                sizes[i] = 0;
+            }
+            for (Subscriber<T> s : next) {
+                int lane = lane(s);
+                split[lane][sizes[lane]++] = s;
+            }
+            lanes = split;
+        }
+        subscribers = next;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> Subscriber<T>[] newArray(int length) {
+        return (Subscriber<T>[]) new Subscriber<?>[length];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Subscriber<T>[][] newLanes(int count) {
+        return (Subscriber<T>[][]) new Subscriber<?>[count][];
+    }
+
+    private int lane(Subscriber<T> subscriber) {
+        return subscriber.connectionId % laneCount;
+    }
+
+    private static int indexOf(Subscriber<?>[] array, int connectionId) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].connectionId == connectionId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}